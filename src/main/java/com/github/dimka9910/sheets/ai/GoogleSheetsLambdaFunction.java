@@ -9,6 +9,9 @@ import com.github.dimka9910.sheets.ai.controller.UsersController;
 import com.github.dimka9910.sheets.ai.dto.ChatRequest;
 import com.github.dimka9910.sheets.ai.dto.ChatResponse;
 import com.github.dimka9910.sheets.ai.services.ChatCommandService;
+import com.github.dimka9910.sheets.ai.services.ErrorClassifier;
+import com.github.dimka9910.sheets.ai.services.RequestDeadline;
+import com.github.dimka9910.sheets.ai.services.RequestMetrics;
 import com.github.dimka9910.sheets.ai.services.UserContextService;
 import lombok.extern.slf4j.Slf4j;
 
@@ -24,6 +27,9 @@ public class GoogleSheetsLambdaFunction implements RequestHandler<APIGatewayProx
             "Access-Control-Allow-Headers", "Content-Type,Authorization"
     );
 
+    // Запас времени Lambda на ответ после вызовов OpenAI
+    private static final long RESPONSE_RESERVE_MS = 2000;
+
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final ChatCommandService chatCommandService;
     private final UsersController usersController;
@@ -52,12 +58,24 @@ public class GoogleSheetsLambdaFunction implements RequestHandler<APIGatewayProx
             return createCorsResponse();
         }
 
+        RequestMetrics.start();
         try {
+            // Ретраи OpenAI не должны выходить за таймаут Lambda
+            if (context != null) {
+                RequestDeadline.start(context.getRemainingTimeInMillis() - RESPONSE_RESERVE_MS);
+            }
             // Route to appropriate handler
             return route(request, path, method);
         } catch (Exception e) {
             log.error("Error processing request: {}", e.getMessage(), e);
+            // Временный сбой (OpenAI/DynamoDB) — клиент может повторить запрос
+            if (ErrorClassifier.isRetryable(e)) {
+                return createErrorResponse(503, "Service temporarily unavailable, please retry: " + e.getMessage());
+            }
             return createErrorResponse(500, "Internal server error: " + e.getMessage());
+        } finally {
+            RequestDeadline.clear();
+            RequestMetrics.flush("api");
         }
     }
 
@@ -148,6 +166,9 @@ public class GoogleSheetsLambdaFunction implements RequestHandler<APIGatewayProx
             return createResponse(200, response);
         } catch (Exception e) {
             log.error("Error parsing command: {}", e.getMessage(), e);
+            if (ErrorClassifier.isRetryable(e)) {
+                return createErrorResponse(503, "Service temporarily unavailable, please retry: " + e.getMessage());
+            }
             return createErrorResponse(400, "Invalid request: " + e.getMessage());
         }
     }
@@ -2,70 +2,409 @@ package com.github.dimka9910.sheets.ai;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.dimka9910.sheets.ai.dto.ChatRequest;
 import com.github.dimka9910.sheets.ai.dto.ChatResponse;
 import com.github.dimka9910.sheets.ai.services.ChatCommandService;
+import com.github.dimka9910.sheets.ai.services.ErrorClassifier;
+import com.github.dimka9910.sheets.ai.services.IdempotencyService;
+import com.github.dimka9910.sheets.ai.services.MessageCoalescer;
+import com.github.dimka9910.sheets.ai.services.RequestDeadline;
+import com.github.dimka9910.sheets.ai.services.RequestMetrics;
+import com.github.dimka9910.sheets.ai.services.TelegramProgress;
 import com.github.dimka9910.sheets.ai.services.TelegramSender;
 import com.github.dimka9910.sheets.ai.services.UserContextService;
 import lombok.extern.slf4j.Slf4j;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Обрабатывает SQS события от Telegram Bot.
  * Асинхронная архитектура: Telegram Bot -> SQS -> этот handler -> Telegram API
+ *
+ * Batch обрабатывается параллельно по пользователям: сообщения одного пользователя —
+ * строго по порядку (контекст, pending команды), разные пользователи — одновременно.
+ * Новое сообщение не начинается, если до таймаута Lambda осталось слишком мало.
+ *
+ * Partial batch response: в batchItemFailures попадают только сообщения с временной ошибкой
+ * (и следующие за ними сообщения того же пользователя) — SQS доставит их повторно,
+ * остальные пользователи batch не перезапускаются. Битые сообщения не повторяются.
+ *
+ * Повторная доставка уже обработанного сообщения (SQS at-least-once) не идёт в OpenAI:
+ * IdempotencyService отдаёт сохранённый ответ (или пропускает, если ответ уже отправлен).
+ *
+ * Несколько быстрых сообщений пользователя в одном batch склеиваются в один запрос (MessageCoalescer).
  */
 @Slf4j
-public class SQSHandler implements RequestHandler<SQSEvent, Void> {
+public class SQSHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    // Запас времени Lambda на отправку ответа в Telegram после вызовов OpenAI
+    private static final long RESPONSE_RESERVE_MS = 5000;
+    // Меньше — новое сообщение уже не начинаем (OpenAI + DynamoDB + Telegram не успеют)
+    private static final long MIN_TIME_FOR_MESSAGE_MS = 15000;
+    private static final int MAX_CONCURRENT_USERS = 10;
+    // = maxReceiveCount в RedrivePolicy RequestsQueue (template.yaml): последняя попытка
+    // отвечает пользователю вместо повтора
+    private static final int MAX_RECEIVE_COUNT = 3;
+    private static final String FAILURE_REPLY = "Sorry, please try again.";
+    // Lock идемпотентности без Lambda context (локальный запуск) = Lambda timeout
+    private static final long DEFAULT_LOCK_MS = 60000;
+
+    // Один executor на контейнер — потоки переживают warm invocations
+    private static final ExecutorService executor = createExecutor();
 
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final ChatCommandService chatCommandService;
     private final TelegramSender telegramSender;
+    private final IdempotencyService idempotencyService;
+    private final MessageCoalescer messageCoalescer = new MessageCoalescer();
 
     public SQSHandler() {
         UserContextService userContextService = new UserContextService();
         this.chatCommandService = new ChatCommandService(userContextService);
         this.telegramSender = new TelegramSender();
+        this.idempotencyService = new IdempotencyService();
     }
 
     @Override
-    public Void handleRequest(SQSEvent event, Context context) {
+    public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
         log.info("Received {} SQS messages", event.getRecords().size());
 
+        // Группируем по пользователю, сохраняя порядок внутри группы
+        Map<String, List<Item>> byUser = new LinkedHashMap<>();
         for (SQSEvent.SQSMessage message : event.getRecords()) {
+            ChatRequest chatRequest;
             try {
-                processMessage(message);
+                chatRequest = objectMapper.readValue(message.getBody(), ChatRequest.class);
+                if (chatRequest.getRequestId() == null) {
+                    chatRequest.setRequestId(message.getMessageId());
+                }
             } catch (Exception e) {
-                log.error("Error processing SQS message: {}", e.getMessage(), e);
-                // Не бросаем исключение чтобы не retry всю batch
+                // Terminal: повтор ничего не изменит
+                log.error("Dropping unparseable SQS message {}: {}", message.getMessageId(), e.getMessage(), e);
+                continue;
+            }
+            byUser.computeIfAbsent(String.valueOf(chatRequest.getUserId()), k -> new ArrayList<>())
+                    .add(new Item(message, chatRequest));
+        }
+        log.info("Batch split into {} user group(s)", byUser.size());
+
+        Queue<String> failedMessageIds = new ConcurrentLinkedQueue<>();
+        Map<List<Item>, Future<?>> futures = new LinkedHashMap<>();
+        for (List<Item> userItems : byUser.values()) {
+            futures.put(userItems, executor.submit(() -> processUserMessages(userItems, context, failedMessageIds)));
+        }
+
+        for (Map.Entry<List<Item>, Future<?>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted while waiting for user messages");
+                break;
+            } catch (ExecutionException e) {
+                // Не должно случаться — processUserMessages ловит всё; на всякий случай повторяем группу
+                log.error("Error processing user messages: {}", e.getCause().getMessage(), e.getCause());
+                entry.getKey().forEach(item -> failedMessageIds.add(item.message().getMessageId()));
             }
         }
 
-        return null;
+        List<SQSBatchResponse.BatchItemFailure> failures = failedMessageIds.stream()
+                .distinct()
+                .map(id -> SQSBatchResponse.BatchItemFailure.builder().withItemIdentifier(id).build())
+                .toList();
+        if (!failures.isEmpty()) {
+            log.warn("{} message(s) will be redelivered", failures.size());
+        }
+        return SQSBatchResponse.builder().withBatchItemFailures(failures).build();
     }
 
-    private void processMessage(SQSEvent.SQSMessage message) throws Exception {
-        String body = message.getBody();
-        log.info("Processing SQS message: {}", body);
+    /**
+     * Сообщения одного пользователя — последовательно; быстрые серии склеиваются в один запрос.
+     * Идемпотентность — по каждому SQS сообщению: уже обработанные отсекаются до склейки,
+     * так что повтор, попавший в другой batch или другую группу, не обработается второй раз.
+     * При временной ошибке это и все следующие сообщения пользователя уходят на повтор —
+     * иначе более позднее сообщение обработалось бы раньше.
+     */
+    private void processUserMessages(List<Item> items, Context context, Queue<String> failedMessageIds) {
+        List<Item> acquired = claim(items, context != null ? context.getRemainingTimeInMillis() : DEFAULT_LOCK_MS,
+                failedMessageIds);
+        if (acquired.isEmpty()) {
+            return;
+        }
+        List<MessageCoalescer.Group<Item>> groups = messageCoalescer.coalesce(acquired, Item::request,
+                SQSHandler::sentAt, acquired.size() > 1 && isAwaitingReply(acquired.get(0).request()));
+        for (int i = 0; i < groups.size(); i++) {
+            MessageCoalescer.Group<Item> group = groups.get(i);
+            ChatRequest request = group.request();
+            String messageIds = group.items().stream().map(item -> item.message().getMessageId()).toList().toString();
+            if (context != null && context.getRemainingTimeInMillis() < MIN_TIME_FOR_MESSAGE_MS) {
+                log.warn("Not enough time left ({} ms), {} request(s) returned to queue",
+                        context.getRemainingTimeInMillis(), groups.size() - i);
+                markFailed(groups, i, failedMessageIds);
+                return;
+            }
+            try {
+                // Ретраи OpenAI не должны выходить за таймаут Lambda
+                if (context != null) {
+                    RequestDeadline.start(context.getRemainingTimeInMillis() - RESPONSE_RESERVE_MS);
+                }
+                processMessage(request, keysOf(group), sentAt(group.items().get(0)));
+            } catch (Exception e) {
+                if (!ErrorClassifier.isRetryable(e)) {
+                    log.error("Terminal error processing SQS message(s) {}: {}", messageIds, e.getMessage(), e);
+                    release(group);
+                    sendFailureReply(request);
+                    continue;
+                }
+                if (receiveCount(group) >= MAX_RECEIVE_COUNT) {
+                    log.error("Transient error on last attempt for {}, replying with failure: {}",
+                            messageIds, e.getMessage(), e);
+                    release(group);
+                    sendFailureReply(request);
+                    continue;
+                }
+                log.warn("Transient error processing SQS message(s) {}, will retry: {}", messageIds, e.getMessage());
+                markFailed(groups, i, failedMessageIds);
+                return;
+            } finally {
+                RequestDeadline.clear();
+            }
+        }
+    }
 
-        // Парсим запрос
-        ChatRequest chatRequest = objectMapper.readValue(body, ChatRequest.class);
-        
-        // Обрабатываем команду
-        ChatResponse response = chatCommandService.processCommand(chatRequest);
-        
-        // Отправляем ответ напрямую в Telegram
-        String chatId = chatRequest.getChatId();
-        if (chatId == null) {
-            chatId = chatRequest.getUserId(); // fallback на userId
+    /**
+     * Занять ключи идемпотентности сообщений по порядку. Уже обработанные — досылаем ответ и пропускаем.
+     * Сообщение обрабатывается в другом месте — оно и все следующие уходят на повтор
+     */
+    private List<Item> claim(List<Item> items, long lockMillis, Queue<String> failedMessageIds) {
+        List<Item> acquired = new ArrayList<>();
+        String lastReplayed = null;
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            IdempotencyService.Claim claim;
+            try {
+                claim = idempotencyService.begin(item.request().getRequestId(), lockMillis);
+            } catch (Exception e) {
+                log.warn("Failed to claim SQS message {}, will retry: {}", item.message().getMessageId(), e.getMessage());
+                claim = null;
+            }
+            if (claim == null || claim.state() == IdempotencyService.State.IN_PROGRESS) {
+                if (claim != null) {
+                    // Другой обработчик ещё работает — повторим позже, когда он завершит
+                    log.warn("SQS message {} is being processed elsewhere, will retry", item.message().getMessageId());
+                }
+                items.subList(i, items.size()).forEach(rest -> failedMessageIds.add(rest.message().getMessageId()));
+                break;
+            }
+            if (claim.state() == IdempotencyService.State.COMPLETED) {
+                // Сообщения одной склейки хранят один и тот же ответ — шлём его один раз
+                String message = claim.response() != null ? claim.response().getMessage() : null;
+                replayResponse(item.request(), claim, message != null && message.equals(lastReplayed));
+                lastReplayed = message;
+                continue;
+            }
+            acquired.add(item);
+        }
+        return acquired;
+    }
+
+    /**
+     * Бот ждёт ответа (да/нет, уточнение, онбординг) — первое сообщение не склеиваем.
+     * Контекст не прочитался — не склеиваем вовсе: обработка по одному всегда корректна
+     */
+    private boolean isAwaitingReply(ChatRequest request) {
+        try {
+            return chatCommandService.isAwaitingReply(request.getUserId());
+        } catch (Exception e) {
+            log.warn("Failed to check pending state of user {}: {}", request.getUserId(), e.getMessage());
+            return true;
+        }
+    }
+
+    private void release(MessageCoalescer.Group<Item> group) {
+        keysOf(group).forEach(idempotencyService::release);
+    }
+
+    private static List<String> keysOf(MessageCoalescer.Group<Item> group) {
+        return group.items().stream().map(item -> item.request().getRequestId()).toList();
+    }
+
+    /**
+     * Группы с from и дальше — на повтор; их ключи освобождаются, чтобы повтор их занял
+     */
+    private void markFailed(List<MessageCoalescer.Group<Item>> groups, int from, Queue<String> failedMessageIds) {
+        for (int j = from; j < groups.size(); j++) {
+            release(groups.get(j));
+            groups.get(j).items().forEach(item -> failedMessageIds.add(item.message().getMessageId()));
+        }
+    }
+
+    /**
+     * Склеенные сообщения повторяются вместе — берём максимальный счётчик доставок
+     */
+    private static int receiveCount(MessageCoalescer.Group<Item> group) {
+        int max = 1;
+        for (Item item : group.items()) {
+            max = Math.max(max, receiveCount(item.message()));
+        }
+        return max;
+    }
+
+    private static long sentAt(Item item) {
+        Map<String, String> attributes = item.message().getAttributes();
+        String value = attributes != null ? attributes.get("SentTimestamp") : null;
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int receiveCount(SQSEvent.SQSMessage message) {
+        Map<String, String> attributes = message.getAttributes();
+        String value = attributes != null ? attributes.get("ApproximateReceiveCount") : null;
+        try {
+            return value != null ? Integer.parseInt(value) : 1;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private void sendFailureReply(ChatRequest chatRequest) {
+        if (!telegramSender.isConfigured()) {
+            return;
+        }
+        try {
+            telegramSender.sendMessage(chatIdOf(chatRequest), FAILURE_REPLY);
+        } catch (Exception e) {
+            log.error("Failed to send failure reply: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Повторная доставка уже обработанного сообщения: без OpenAI и записи в Sheets,
+     * только досылаем ответ, если в прошлый раз он не ушёл (и ещё не дослан для этой же склейки)
+     */
+    private void replayResponse(ChatRequest chatRequest, IdempotencyService.Claim claim, boolean alreadyResent) {
+        if (claim.replied() || claim.response() == null) {
+            log.info("Duplicate SQS message {} already processed, skipping", chatRequest.getRequestId());
+            return;
+        }
+        log.info("Duplicate SQS message {}, resending stored response", chatRequest.getRequestId());
+        if (telegramSender.isConfigured() && !alreadyResent) {
+            telegramSender.sendMessage(chatIdOf(chatRequest), claim.response().getMessage());
+        }
+        idempotencyService.markReplied(chatRequest.getRequestId(), claim.response());
+    }
+
+    private static String chatIdOf(ChatRequest chatRequest) {
+        return chatRequest.getChatId() != null ? chatRequest.getChatId() : chatRequest.getUserId(); // fallback на userId
+    }
+
+    /**
+     * Virtual threads, если runtime их поддерживает (Java 21+), иначе пул платформенных потоков.
+     * Параллелизм в любом случае ограничен размером batch (не больше MAX_CONCURRENT_USERS групп)
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            log.info("Using virtual threads for SQS batch processing");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return Executors.newFixedThreadPool(MAX_CONCURRENT_USERS, runnable -> {
+                Thread thread = new Thread(runnable, "sqs-worker-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * sentAt — когда пользователь отправил сообщение (SQS SentTimestamp), 0 если неизвестно
+     */
+    private void processMessage(ChatRequest chatRequest, List<String> keys, long sentAt) {
+        RequestMetrics.start();
+        try {
+            handleMessage(chatRequest, keys, sentAt > 0 ? sentAt : System.currentTimeMillis());
+        } finally {
+            RequestMetrics.flush("sqs");
         }
+    }
+
+    /**
+     * keys — ключи идемпотентности всех SQS сообщений запроса (несколько для склейки)
+     */
+    private void handleMessage(ChatRequest chatRequest, List<String> keys, long sentAt) {
+        log.info("Processing SQS message from user {}: {}", chatRequest.getUserId(), chatRequest.getMessage());
         
-        if (telegramSender.isConfigured()) {
-            telegramSender.sendMessage(chatId, response.getMessage());
-            log.info("Response sent to Telegram chat {}", chatId);
-        } else {
+        if (!telegramSender.isConfigured()) {
+            ChatResponse response = chatCommandService.processCommand(chatRequest);
             log.warn("Telegram not configured, response not sent: {}", response.getMessage());
+            keys.forEach(key -> idempotencyService.markReplied(key, response));
+            return;
+        }
+
+        // Сразу "печатает..." — пользователь видит реакцию, пока идёт вызов OpenAI
+        String chatId = chatIdOf(chatRequest);
+        try (TelegramProgress progress = new TelegramProgress(telegramSender, chatId, sentAt)) {
+            progress.start();
+
+            // Обрабатываем команду. Streaming: первая команда от AI сразу показывается заглушкой-preview,
+            // замеряем, когда она готова относительно полного времени обработки
+            long startedAt = System.currentTimeMillis();
+            long[] firstCommandMillis = {-1};
+            ChatResponse response = chatCommandService.processCommand(chatRequest, command -> {
+                if (firstCommandMillis[0] < 0) {
+                    firstCommandMillis[0] = System.currentTimeMillis() - startedAt;
+                    RequestMetrics.record(RequestMetrics.FIRST_COMMAND, firstCommandMillis[0]);
+                    log.info("First command ready after {} ms: {}", firstCommandMillis[0], command);
+                    progress.preview(command);
+                }
+            });
+            log.info("Command processed in {} ms (first command at {} ms)",
+                    System.currentTimeMillis() - startedAt, firstCommandMillis[0]);
+
+            // Отправляем ответ (или правим заглушку) — асинхронно, пока сохраняем результат
+            long sendStartedAt = System.currentTimeMillis();
+            long[] sendMillis = {-1};
+            CompletableFuture<Boolean> sent = progress.deliver(response.getMessage())
+                    .whenComplete((ok, e) -> sendMillis[0] = System.currentTimeMillis() - sendStartedAt);
+
+            // Записи в Sheets ушли — повтор не должен обрабатывать сообщение заново
+            keys.forEach(key -> idempotencyService.complete(key, response));
+
+            boolean delivered = sent.join();
+            RequestMetrics.record(RequestMetrics.TELEGRAM_SEND, sendMillis[0]);
+            if (progress.firstFeedbackMillis() >= 0) {
+                RequestMetrics.record(RequestMetrics.FIRST_FEEDBACK, progress.firstFeedbackMillis());
+            }
+            if (delivered) {
+                log.info("Response sent to Telegram chat {} (first feedback after {} ms)",
+                        chatId, progress.firstFeedbackMillis());
+                keys.forEach(key -> idempotencyService.markReplied(key, response));
+            }
         }
     }
-}
 
+    /**
+     * Сообщение SQS и разобранный запрос
+     */
+    private record Item(SQSEvent.SQSMessage message, ChatRequest request) {
+    }
+}
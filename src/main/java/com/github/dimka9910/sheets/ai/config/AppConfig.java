@@ -62,6 +62,14 @@ public class AppConfig {
         return get("openai.api.key", "OPENAI_API_KEY");
     }
 
+    /**
+     * Base URL OpenAI-совместимого API (по умолчанию https://api.openai.com/v1).
+     * Позволяет направить запросы на локальный stub
+     */
+    public static String getOpenAiBaseUrl() {
+        return get("openai.base.url", "OPENAI_BASE_URL");
+    }
+
     public static String getSheetsQueueUrl() {
         return get("sqs.sheets.queue.url", "SHEETS_QUEUE_URL");
     }
@@ -79,5 +87,49 @@ public class AppConfig {
         String tableName = get("dynamodb.users.table", "USERS_TABLE_NAME");
         return tableName != null ? tableName : "finance-tracker-users-dev";
     }
-}
 
+    /**
+     * Таблица сессий диалога (история, pending команды, последние операции) — отдельно от профиля
+     */
+    public static String getSessionsTableName() {
+        String tableName = get("dynamodb.sessions.table", "SESSIONS_TABLE_NAME");
+        return tableName != null ? tableName : "finance-tracker-sessions-dev";
+    }
+
+    /**
+     * Endpoint DynamoDB (например http://localhost:8000 для DynamoDB Local). null = AWS по региону
+     */
+    public static String getDynamoDbEndpoint() {
+        return get("dynamodb.endpoint", "DYNAMODB_ENDPOINT");
+    }
+
+    /**
+     * Таблица общего кэша ответов AI. null = только in-memory кэш в контейнере
+     */
+    public static String getParseCacheTableName() {
+        return get("dynamodb.parse.cache.table", "PARSE_CACHE_TABLE_NAME");
+    }
+
+    /**
+     * Таблица идемпотентности входящих SQS сообщений. null = только in-memory (в пределах контейнера)
+     */
+    public static String getIdempotencyTableName() {
+        return get("dynamodb.idempotency.table", "IDEMPOTENCY_TABLE_NAME");
+    }
+
+    /**
+     * Streaming ответов OpenAI (SSE). По умолчанию включён, OPENAI_STREAMING=false — выключить
+     */
+    public static boolean isOpenAiStreamingEnabled() {
+        String value = get("openai.streaming", "OPENAI_STREAMING");
+        return value == null || !"false".equalsIgnoreCase(value);
+    }
+
+    /**
+     * Hedged запросы к OpenAI (второй запрос, если первый дольше p95). По умолчанию выключено —
+     * медленные вызовы стоят вдвое дороже
+     */
+    public static boolean isLlmHedgeEnabled() {
+        return "true".equalsIgnoreCase(get("llm.hedge.enabled", "LLM_HEDGE_ENABLED"));
+    }
+}
@@ -63,15 +63,11 @@ public class UsersController {
         try {
             JsonNode body = objectMapper.readTree(request.getBody());
             
-            if (body.has("defaultCurrency")) {
-                userContextService.setDefaultCurrency(userId, body.get("defaultCurrency").asText());
-            }
-            if (body.has("defaultAccount")) {
-                userContextService.setDefaultAccount(userId, body.get("defaultAccount").asText());
-            }
-            if (body.has("defaultFund")) {
-                userContextService.setDefaultFund(userId, body.get("defaultFund").asText());
-            }
+            // Одно UpdateItem на все переданные поля, без чтения контекста
+            userContextService.updateDefaults(userId,
+                    body.has("defaultCurrency") ? body.get("defaultCurrency").asText() : null,
+                    body.has("defaultAccount") ? body.get("defaultAccount").asText() : null,
+                    body.has("defaultFund") ? body.get("defaultFund").asText() : null);
             
             return createJsonResponse(200, Map.of(
                     "success", true,
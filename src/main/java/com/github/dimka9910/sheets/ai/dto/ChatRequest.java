@@ -18,5 +18,6 @@ public class ChatRequest {
     private String userId;      // ID пользователя
     private String userName;    // Имя пользователя
     private String message;     // Текст сообщения от пользователя
+    private String requestId;   // ID доставки (SQS messageId) — одинаковый при повторах, для дедупликации
 }
 
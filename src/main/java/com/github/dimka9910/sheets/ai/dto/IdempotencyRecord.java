@@ -0,0 +1,35 @@
+package com.github.dimka9910.sheets.ai.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+
+/**
+ * Состояние обработки входящего сообщения (защита от повторной доставки SQS).
+ * Хранится в DynamoDB таблице finance-tracker-idempotency-{env} (TTL по expiresAt)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@DynamoDbBean
+public class IdempotencyRecord {
+
+    public static final String IN_PROGRESS = "IN_PROGRESS";
+    public static final String COMPLETED = "COMPLETED";
+
+    private String idempotencyKey;  // PK: ChatRequest.requestId (SQS messageId)
+    private String status;          // IN_PROGRESS / COMPLETED
+    private String response;        // ChatResponse в JSON (для COMPLETED)
+    private Boolean replied;        // Ответ уже отправлен в Telegram
+    private Long lockedUntil;       // IN_PROGRESS: epoch millis, после — обработчик считается упавшим
+    private Long expiresAt;         // TTL, epoch seconds
+
+    @DynamoDbPartitionKey
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+}
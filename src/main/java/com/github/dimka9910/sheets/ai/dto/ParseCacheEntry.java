@@ -0,0 +1,30 @@
+package com.github.dimka9910.sheets.ai.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+
+/**
+ * Запись общего кэша ответов AI.
+ * Хранится в DynamoDB таблице finance-tracker-parse-cache-{env} (TTL по expiresAt)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@DynamoDbBean
+public class ParseCacheEntry {
+
+    private String cacheKey;    // PK: SHA-256(сообщение + fingerprint контекста)
+    private String payload;     // ParsedCommandList в JSON
+    private Integer tokens;     // Сколько токенов стоил оригинальный вызов
+    private Long expiresAt;     // TTL, epoch seconds
+
+    @DynamoDbPartitionKey
+    public String getCacheKey() {
+        return cacheKey;
+    }
+}
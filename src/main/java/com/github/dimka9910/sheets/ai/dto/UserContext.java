@@ -1,23 +1,30 @@
 package com.github.dimka9910.sheets.ai.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbSecondaryPartitionKey;
 
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbIgnore;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Контекст пользователя - его настройки, счета, фонды, кастомные инструкции.
- * Хранится в DynamoDB таблице finance-tracker-users-{env}
+ * Хранится в DynamoDB таблице finance-tracker-users-{env}.
+ * Сессионные поля (история, pending, операции) хранятся отдельно — см. UserSession
  */
 @Data
 @Builder
@@ -86,6 +93,21 @@ public class UserContext {
     @Builder.Default
     private List<ParsedCommand> lastOperations = new ArrayList<>();
     
+    // Версия записи — новое случайное значение при каждом сохранении (не счётчик: два писателя
+    // с одной исходной версией не должны получить одинаковую). Проверка кэша в UserContextService
+    private Long version;
+    
+    // Снимок атрибутов на момент чтения/сохранения (НЕ сохраняется в DynamoDB).
+    // По нему UserContextRepository.save пишет только изменённые поля (UpdateItem вместо putItem)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient Map<String, AttributeValue> persistedState;
+    
+    // То же для сессии (UserSession) — запись сессии только если она изменилась
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient Map<String, AttributeValue> persistedSession;
+    
     @DynamoDbPartitionKey
     public String getUserId() {
         return userId;
@@ -96,6 +118,28 @@ public class UserContext {
         return telegramId;
     }
     
+    // ====== Сессия (в item профиля не пишется — таблица сессий, UserSession) ======
+    
+    @DynamoDbIgnore
+    public List<ConversationMessage> getConversationHistory() {
+        return conversationHistory;
+    }
+    
+    @DynamoDbIgnore
+    public String getPendingSuggestion() {
+        return pendingSuggestion;
+    }
+    
+    @DynamoDbIgnore
+    public List<ParsedCommand> getPendingCommands() {
+        return pendingCommands;
+    }
+    
+    @DynamoDbIgnore
+    public List<ParsedCommand> getLastOperations() {
+        return lastOperations;
+    }
+    
     // ====== Utility methods ======
     
     public void addInstruction(String instruction) {
@@ -223,6 +267,45 @@ public class UserContext {
         return lastOperations != null && !lastOperations.isEmpty();
     }
     
+    // ====== Dirty tracking (transient, не сохраняется в DynamoDB) ======
+    
+    @DynamoDbIgnore
+    @JsonIgnore
+    public Map<String, AttributeValue> getPersistedState() {
+        return persistedState;
+    }
+    
+    public void setPersistedState(Map<String, AttributeValue> persistedState) {
+        this.persistedState = persistedState;
+    }
+    
+    @DynamoDbIgnore
+    @JsonIgnore
+    public Map<String, AttributeValue> getPersistedSession() {
+        return persistedSession;
+    }
+    
+    public void setPersistedSession(Map<String, AttributeValue> persistedSession) {
+        this.persistedSession = persistedSession;
+    }
+    
+    /**
+     * Атрибуты из names, изменившиеся с момента чтения/сохранения.
+     * current — текущее состояние в виде атрибутов DynamoDB. Без снимка — null (изменено всё)
+     */
+    public List<String> dirtyAttributes(Map<String, AttributeValue> current, Collection<String> names) {
+        if (persistedState == null) {
+            return null;
+        }
+        List<String> dirty = new ArrayList<>();
+        for (String name : names) {
+            if (!Objects.equals(persistedState.get(name), current.get(name))) {
+                dirty.add(name);
+            }
+        }
+        return dirty;
+    }
+    
     // ====== Linked User Contexts (transient, не сохраняется в DynamoDB) ======
     
     @DynamoDbIgnore
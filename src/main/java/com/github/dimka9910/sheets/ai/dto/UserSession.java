@@ -0,0 +1,82 @@
+package com.github.dimka9910.sheets.ai.dto;
+
+import com.github.dimka9910.sheets.ai.repository.CompressedListConverter;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbConvertedBy;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Сессия диалога — часто меняющаяся часть контекста пользователя (история, pending команды,
+ * предложенная инструкция, последние операции для отмены). Отдельно от профиля UserContext:
+ * профиль читается маленьким item и кэшируется, запись сессии не переписывает профиль.
+ * Хранится в DynamoDB таблице finance-tracker-sessions-{env} (TTL по expiresAt).
+ * Списки пишутся сжатым бинарным атрибутом (CompressedListConverter), старый формат читается
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@DynamoDbBean
+public class UserSession {
+
+    // Атрибуты сессии — с теми же именами они раньше лежали в item UserContext (оттуда их читает миграция)
+    public static final List<String> ATTRIBUTES = List.of(
+            "conversationHistory", "pendingSuggestion", "pendingCommands", "lastOperations");
+
+    private String userId;          // PK
+    private List<ConversationMessage> conversationHistory;
+    private String pendingSuggestion;
+    private List<ParsedCommand> pendingCommands;
+    private List<ParsedCommand> lastOperations;
+    private Long expiresAt;         // TTL, epoch seconds
+
+    @DynamoDbPartitionKey
+    public String getUserId() {
+        return userId;
+    }
+
+    @DynamoDbConvertedBy(CompressedListConverter.ConversationHistory.class)
+    public List<ConversationMessage> getConversationHistory() {
+        return conversationHistory;
+    }
+
+    @DynamoDbConvertedBy(CompressedListConverter.ParsedCommands.class)
+    public List<ParsedCommand> getPendingCommands() {
+        return pendingCommands;
+    }
+
+    @DynamoDbConvertedBy(CompressedListConverter.ParsedCommands.class)
+    public List<ParsedCommand> getLastOperations() {
+        return lastOperations;
+    }
+
+    /**
+     * Сессионная часть контекста
+     */
+    public static UserSession from(UserContext context) {
+        return UserSession.builder()
+                .userId(context.getUserId())
+                .conversationHistory(context.getConversationHistory())
+                .pendingSuggestion(context.getPendingSuggestion())
+                .pendingCommands(context.getPendingCommands())
+                .lastOperations(context.getLastOperations())
+                .build();
+    }
+
+    /**
+     * Перенести сессию в контекст (отсутствующие списки — пустые)
+     */
+    public void applyTo(UserContext context) {
+        context.setConversationHistory(conversationHistory != null ? conversationHistory : new ArrayList<>());
+        context.setPendingSuggestion(pendingSuggestion);
+        context.setPendingCommands(pendingCommands != null ? pendingCommands : new ArrayList<>());
+        context.setLastOperations(lastOperations != null ? lastOperations : new ArrayList<>());
+    }
+}
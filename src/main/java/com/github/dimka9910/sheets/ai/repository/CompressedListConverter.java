@@ -0,0 +1,145 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.dimka9910.sheets.ai.dto.ConversationMessage;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.enhanced.dynamodb.AttributeConverter;
+import software.amazon.awssdk.enhanced.dynamodb.AttributeValueType;
+import software.amazon.awssdk.enhanced.dynamodb.EnhancedType;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Список объектов как один бинарный атрибут: [версия формата][Deflate(JSON массив без null полей)].
+ *
+ * Bean mapping пишет список как L из M — с полными именами атрибутов в каждом элементе
+ * (история из 20 сообщений, pending команды, операции). Сжатый JSON в разы меньше — меньше
+ * RCU/WCU на каждом ходе диалога.
+ *
+ * Старый формат (L из M) читается как раньше; запись всегда в новом.
+ */
+public abstract class CompressedListConverter<T> implements AttributeConverter<List<T>> {
+
+    private static final byte FORMAT_DEFLATE_JSON = 1;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .addMixIn(ConversationMessage.class, ConversationMessageMixin.class);
+
+    private final EnhancedType<List<T>> type;
+    private final TableSchema<T> legacySchema;
+    private final ObjectWriter writer;
+    private final ObjectReader reader;
+
+    protected CompressedListConverter(Class<T> elementClass, TableSchema<T> legacySchema) {
+        this.type = EnhancedType.listOf(elementClass);
+        this.legacySchema = legacySchema;
+        JavaType listType = objectMapper.getTypeFactory().constructCollectionType(List.class, elementClass);
+        this.writer = objectMapper.writerFor(listType);
+        this.reader = objectMapper.readerFor(listType);
+    }
+
+    @Override
+    public AttributeValue transformFrom(List<T> input) {
+        if (input == null) {
+            return AttributeValue.fromNul(true);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        bytes.write(FORMAT_DEFLATE_JSON);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            writer.writeValue(out, input);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode list attribute", e);
+        } finally {
+            deflater.end();
+        }
+        return AttributeValue.fromB(SdkBytes.fromByteArrayUnsafe(bytes.toByteArray()));
+    }
+
+    @Override
+    public List<T> transformTo(AttributeValue input) {
+        if (input.b() != null) {
+            return decode(input.b().asByteArrayUnsafe());
+        }
+        if (input.hasL()) {
+            // Старый формат: элементы — вложенные карты bean mapping
+            List<T> items = new ArrayList<>(input.l().size());
+            for (AttributeValue element : input.l()) {
+                items.add(legacySchema.mapToItem(element.m()));
+            }
+            return items;
+        }
+        return null;
+    }
+
+    @Override
+    public EnhancedType<List<T>> type() {
+        return type;
+    }
+
+    @Override
+    public AttributeValueType attributeValueType() {
+        return AttributeValueType.B;
+    }
+
+    private List<T> decode(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != FORMAT_DEFLATE_JSON) {
+            throw new IllegalArgumentException("Unknown list attribute format: " + (bytes.length > 0 ? bytes[0] : "empty"));
+        }
+        Inflater inflater = new Inflater(true);
+        try (InputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(bytes, 1, bytes.length - 1), inflater)) {
+            return reader.readValue(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode list attribute", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * parsedResult — только runtime, в DynamoDB не хранится (как и в bean mapping)
+     */
+    @JsonIgnoreProperties("parsedResult")
+    private abstract static class ConversationMessageMixin {
+    }
+
+    /**
+     * UserSession.conversationHistory
+     */
+    public static class ConversationHistory extends CompressedListConverter<ConversationMessage> {
+        public ConversationHistory() {
+            super(ConversationMessage.class, UserContextSchemas.CONVERSATION_MESSAGE);
+        }
+    }
+
+    /**
+     * UserSession.pendingCommands / lastOperations
+     */
+    public static class ParsedCommands extends CompressedListConverter<ParsedCommand> {
+        public ParsedCommands() {
+            super(ParsedCommand.class, UserContextSchemas.PARSED_COMMAND);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.github.dimka9910.sheets.ai.config.AppConfig;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
+
+import java.net.URI;
+
+/**
+ * Клиент DynamoDB для всех репозиториев: регион из конфига, DYNAMODB_ENDPOINT — локальная
+ * DynamoDB (DynamoDB Local / LocalStack) вместо AWS.
+ */
+public final class DynamoDbClients {
+
+    private DynamoDbClients() {
+    }
+
+    public static DynamoDbClient create() {
+        DynamoDbClientBuilder builder = DynamoDbClient.builder()
+                .region(Region.of(AppConfig.getAwsRegion()));
+        String endpoint = AppConfig.getDynamoDbEndpoint();
+        if (endpoint != null) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+        return builder.build();
+    }
+}
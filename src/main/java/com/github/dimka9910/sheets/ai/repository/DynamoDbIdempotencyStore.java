@@ -0,0 +1,132 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.github.dimka9910.sheets.ai.dto.IdempotencyRecord;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.Expression;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.model.DeleteItemEnhancedRequest;
+import software.amazon.awssdk.enhanced.dynamodb.model.PutItemEnhancedRequest;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Идемпотентность в DynamoDB: занятие ключа — conditional put, записи удаляются по TTL.
+ *
+ * Ошибки DynamoDB (кроме проигранного условия) не пробрасываются: лучше обработать дубль,
+ * чем не обработать сообщение вовсе.
+ */
+@Slf4j
+public class DynamoDbIdempotencyStore implements IdempotencyStore {
+
+    // Ключа нет / TTL прошёл, но DynamoDB ещё не удалил / прошлый обработчик не успел за lock
+    private static final String ACQUIRE_CONDITION = "attribute_not_exists(idempotencyKey)"
+            + " OR expiresAt < :nowSeconds"
+            + " OR (#status = :inProgress AND lockedUntil < :nowMillis)";
+
+    // Только свой claim: другой обработчик мог перехватить просроченный lock или уже завершить
+    private static final String RELEASE_CONDITION = "#status = :inProgress AND lockedUntil = :lockedUntil";
+
+    private final DynamoDbTable<IdempotencyRecord> table;
+
+    public DynamoDbIdempotencyStore(String tableName) {
+        log.info("Initializing DynamoDbIdempotencyStore with table: {}", tableName);
+
+        DynamoDbClient dynamoDbClient = DynamoDbClients.create();
+
+        DynamoDbEnhancedClient enhancedClient = DynamoDbEnhancedClient.builder()
+                .dynamoDbClient(dynamoDbClient)
+                .build();
+
+        this.table = enhancedClient.table(tableName, TableSchema.fromBean(IdempotencyRecord.class));
+    }
+
+    // Конструктор для тестирования
+    public DynamoDbIdempotencyStore(DynamoDbEnhancedClient enhancedClient, String tableName) {
+        this.table = enhancedClient.table(tableName, TableSchema.fromBean(IdempotencyRecord.class));
+    }
+
+    @Override
+    public boolean tryAcquire(String key, long lockedUntilMillis, long expiresAtEpochSeconds) {
+        long now = System.currentTimeMillis();
+        Expression condition = Expression.builder()
+                .expression(ACQUIRE_CONDITION)
+                .expressionNames(Map.of("#status", "status"))  // status — зарезервированное слово
+                .expressionValues(Map.of(
+                        ":nowSeconds", AttributeValue.fromN(String.valueOf(now / 1000)),
+                        ":nowMillis", AttributeValue.fromN(String.valueOf(now)),
+                        ":inProgress", AttributeValue.fromS(IdempotencyRecord.IN_PROGRESS)))
+                .build();
+        try {
+            table.putItem(PutItemEnhancedRequest.builder(IdempotencyRecord.class)
+                    .item(IdempotencyRecord.builder()
+                            .idempotencyKey(key)
+                            .status(IdempotencyRecord.IN_PROGRESS)
+                            .lockedUntil(lockedUntilMillis)
+                            .expiresAt(expiresAtEpochSeconds)
+                            .build())
+                    .conditionExpression(condition)
+                    .build());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        } catch (Exception e) {
+            log.warn("Error acquiring idempotency key {}: {}", key, e.getMessage());
+            return true;
+        }
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> get(String key) {
+        try {
+            return Optional.ofNullable(table.getItem(r -> r
+                    .key(Key.builder().partitionValue(key).build())
+                    .consistentRead(true)));
+        } catch (Exception e) {
+            log.warn("Error reading idempotency record {}: {}", key, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void complete(String key, String responseJson, boolean replied, long expiresAtEpochSeconds) {
+        try {
+            table.putItem(IdempotencyRecord.builder()
+                    .idempotencyKey(key)
+                    .status(IdempotencyRecord.COMPLETED)
+                    .response(responseJson)
+                    .replied(replied)
+                    .expiresAt(expiresAtEpochSeconds)
+                    .build());
+        } catch (Exception e) {
+            log.warn("Error completing idempotency record {}: {}", key, e.getMessage());
+        }
+    }
+
+    @Override
+    public void release(String key, long lockedUntilMillis) {
+        Expression condition = Expression.builder()
+                .expression(RELEASE_CONDITION)
+                .expressionNames(Map.of("#status", "status"))
+                .expressionValues(Map.of(
+                        ":inProgress", AttributeValue.fromS(IdempotencyRecord.IN_PROGRESS),
+                        ":lockedUntil", AttributeValue.fromN(String.valueOf(lockedUntilMillis))))
+                .build();
+        try {
+            table.deleteItem(DeleteItemEnhancedRequest.builder()
+                    .key(Key.builder().partitionValue(key).build())
+                    .conditionExpression(condition)
+                    .build());
+        } catch (ConditionalCheckFailedException e) {
+            log.info("Idempotency record {} is no longer our claim, not releasing", key);
+        } catch (Exception e) {
+            log.warn("Error releasing idempotency record {}: {}", key, e.getMessage());
+        }
+    }
+}
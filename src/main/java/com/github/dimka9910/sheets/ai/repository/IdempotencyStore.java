@@ -0,0 +1,34 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.github.dimka9910.sheets.ai.dto.IdempotencyRecord;
+
+import java.util.Optional;
+
+/**
+ * Хранилище состояний обработки входящих сообщений.
+ * DynamoDbIdempotencyStore — общее для всех контейнеров, InMemoryIdempotencyStore — локально и для тестов.
+ */
+public interface IdempotencyStore {
+
+    /**
+     * Атомарно занять ключ (IN_PROGRESS до lockedUntilMillis).
+     * Удаётся, если записи нет, она истекла или прошлый обработчик не успел за свой lock.
+     *
+     * @return false, если ключ уже занят или обработан
+     */
+    boolean tryAcquire(String key, long lockedUntilMillis, long expiresAtEpochSeconds);
+
+    Optional<IdempotencyRecord> get(String key);
+
+    /**
+     * Сохранить результат (COMPLETED)
+     */
+    void complete(String key, String responseJson, boolean replied, long expiresAtEpochSeconds);
+
+    /**
+     * Снять IN_PROGRESS (обработка упала — повтор должен пройти заново).
+     * Только свой lock: запись всё ещё IN_PROGRESS с тем же lockedUntil, что выставил tryAcquire —
+     * поздний release не удалит чужой claim или COMPLETED запись
+     */
+    void release(String key, long lockedUntilMillis);
+}
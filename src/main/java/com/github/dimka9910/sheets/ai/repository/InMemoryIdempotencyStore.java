@@ -0,0 +1,79 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.github.dimka9910.sheets.ai.dto.IdempotencyRecord;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Хранилище в памяти: локальный запуск, тесты, или когда IDEMPOTENCY_TABLE_NAME не задан
+ * (тогда дубли ловятся только в пределах одного контейнера).
+ * LRU на MAX_ENTRIES записей — warm контейнер живёт часами, а окно повторов SQS намного короче.
+ */
+public class InMemoryIdempotencyStore implements IdempotencyStore {
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private final Map<String, IdempotencyRecord> records = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IdempotencyRecord> eldest) {
+            return size() > MAX_ENTRIES || eldest.getValue().getExpiresAt() * 1000 < System.currentTimeMillis();
+        }
+    };
+
+    @Override
+    public synchronized boolean tryAcquire(String key, long lockedUntilMillis, long expiresAtEpochSeconds) {
+        long now = System.currentTimeMillis();
+        boolean[] acquired = {false};
+        records.compute(key, (k, existing) -> {
+            if (existing != null && !isStale(existing, now)) {
+                return existing;
+            }
+            acquired[0] = true;
+            return IdempotencyRecord.builder()
+                    .idempotencyKey(key)
+                    .status(IdempotencyRecord.IN_PROGRESS)
+                    .lockedUntil(lockedUntilMillis)
+                    .expiresAt(expiresAtEpochSeconds)
+                    .build();
+        });
+        return acquired[0];
+    }
+
+    @Override
+    public synchronized Optional<IdempotencyRecord> get(String key) {
+        IdempotencyRecord record = records.get(key);
+        if (record == null || record.getExpiresAt() * 1000 < System.currentTimeMillis()) {
+            return Optional.empty();
+        }
+        return Optional.of(record);
+    }
+
+    @Override
+    public synchronized void complete(String key, String responseJson, boolean replied, long expiresAtEpochSeconds) {
+        records.put(key, IdempotencyRecord.builder()
+                .idempotencyKey(key)
+                .status(IdempotencyRecord.COMPLETED)
+                .response(responseJson)
+                .replied(replied)
+                .expiresAt(expiresAtEpochSeconds)
+                .build());
+    }
+
+    @Override
+    public synchronized void release(String key, long lockedUntilMillis) {
+        IdempotencyRecord record = records.get(key);
+        if (record != null && IdempotencyRecord.IN_PROGRESS.equals(record.getStatus())
+                && record.getLockedUntil() != null && record.getLockedUntil() == lockedUntilMillis) {
+            records.remove(key);
+        }
+    }
+
+    private static boolean isStale(IdempotencyRecord record, long now) {
+        if (record.getExpiresAt() * 1000 < now) {
+            return true;
+        }
+        return IdempotencyRecord.IN_PROGRESS.equals(record.getStatus()) && record.getLockedUntil() < now;
+    }
+}
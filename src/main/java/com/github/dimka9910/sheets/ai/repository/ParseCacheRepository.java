@@ -0,0 +1,68 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.github.dimka9910.sheets.ai.dto.ParseCacheEntry;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.Optional;
+
+/**
+ * Repository для общего (между контейнерами) кэша ответов AI в DynamoDB.
+ * Ошибки не пробрасываются — кэш не должен ломать обработку команды.
+ */
+@Slf4j
+public class ParseCacheRepository {
+
+    private final DynamoDbTable<ParseCacheEntry> table;
+
+    public ParseCacheRepository(String tableName) {
+        log.info("Initializing ParseCacheRepository with table: {}", tableName);
+
+        DynamoDbClient dynamoDbClient = DynamoDbClients.create();
+
+        DynamoDbEnhancedClient enhancedClient = DynamoDbEnhancedClient.builder()
+                .dynamoDbClient(dynamoDbClient)
+                .build();
+
+        this.table = enhancedClient.table(tableName, TableSchema.fromBean(ParseCacheEntry.class));
+    }
+
+    // Конструктор для тестирования
+    public ParseCacheRepository(DynamoDbEnhancedClient enhancedClient, String tableName) {
+        this.table = enhancedClient.table(tableName, TableSchema.fromBean(ParseCacheEntry.class));
+    }
+
+    /**
+     * Получить запись по ключу
+     */
+    public Optional<ParseCacheEntry> get(String cacheKey) {
+        try {
+            return Optional.ofNullable(table.getItem(Key.builder()
+                    .partitionValue(cacheKey)
+                    .build()));
+        } catch (Exception e) {
+            log.warn("Error reading parse cache entry: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Сохранить запись
+     */
+    public void put(String cacheKey, String payload, int tokens, long expiresAtEpochSeconds) {
+        try {
+            table.putItem(ParseCacheEntry.builder()
+                    .cacheKey(cacheKey)
+                    .payload(payload)
+                    .tokens(tokens)
+                    .expiresAt(expiresAtEpochSeconds)
+                    .build());
+        } catch (Exception e) {
+            log.warn("Error writing parse cache entry: {}", e.getMessage());
+        }
+    }
+}
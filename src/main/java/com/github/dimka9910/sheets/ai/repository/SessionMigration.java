@@ -0,0 +1,121 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.github.dimka9910.sheets.ai.config.AppConfig;
+import com.github.dimka9910.sheets.ai.dto.UserSession;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Разовый перенос сессий (история, pending, операции) из item профиля в таблицу сессий.
+ *
+ * Для каждого пользователя со старыми атрибутами: сессия пишется, только если её ещё нет
+ * (уже перенесённую лениво не затираем), затем атрибуты удаляются из профиля с новой version —
+ * кэши контейнеров перечитают профиль. Повторный запуск безопасен.
+ * Пользователи, до которых миграция не дошла, переносятся при первой записи (UserContextService).
+ *
+ * Запуск: USERS_TABLE_NAME, SESSIONS_TABLE_NAME, AWS_REGION; для DynamoDB Local ещё
+ * DYNAMODB_ENDPOINT=http://localhost:8000 —
+ * java -cp target/GoogleSheetAIFunction-1.0-SNAPSHOT.jar com.github.dimka9910.sheets.ai.repository.SessionMigration
+ */
+@Slf4j
+public class SessionMigration {
+
+    private static final String KEY_ATTRIBUTE = "userId";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String usersTableName;
+    private final String sessionsTableName;
+
+    public SessionMigration() {
+        this(DynamoDbClients.create(), AppConfig.getUsersTableName(), AppConfig.getSessionsTableName());
+    }
+
+    // Конструктор для тестирования
+    public SessionMigration(DynamoDbClient dynamoDbClient, String usersTableName, String sessionsTableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.usersTableName = usersTableName;
+        this.sessionsTableName = sessionsTableName;
+    }
+
+    public static void main(String[] args) {
+        int migrated = new SessionMigration().run();
+        log.info("Session migration finished: {} user(s) migrated", migrated);
+    }
+
+    /**
+     * Перенести все сессии старого формата. Возвращает число обработанных пользователей
+     */
+    public int run() {
+        log.info("Migrating sessions from {} to {}", usersTableName, sessionsTableName);
+        Map<String, String> names = new HashMap<>();
+        List<String> projection = new ArrayList<>();
+        List<String> filter = new ArrayList<>();
+        names.put("#k", KEY_ATTRIBUTE);
+        projection.add("#k");
+        for (int i = 0; i < UserSession.ATTRIBUTES.size(); i++) {
+            names.put("#a" + i, UserSession.ATTRIBUTES.get(i));
+            projection.add("#a" + i);
+            filter.add("attribute_exists(#a" + i + ")");
+        }
+
+        ScanRequest scan = ScanRequest.builder()
+                .tableName(usersTableName)
+                .projectionExpression(String.join(", ", projection))
+                .filterExpression(String.join(" OR ", filter))
+                .expressionAttributeNames(names)
+                .build();
+
+        int migrated = 0;
+        for (Map<String, AttributeValue> item : dynamoDbClient.scanPaginator(scan).items()) {
+            migrate(item);
+            migrated++;
+        }
+        return migrated;
+    }
+
+    private void migrate(Map<String, AttributeValue> item) {
+        String userId = item.get(KEY_ATTRIBUTE).s();
+        Map<String, AttributeValue> session = new HashMap<>(item);
+        session.put("expiresAt", AttributeValue.fromN(String.valueOf(UserSessionRepository.expiresAt())));
+        try {
+            dynamoDbClient.putItem(PutItemRequest.builder()
+                    .tableName(sessionsTableName)
+                    .item(session)
+                    .conditionExpression("attribute_not_exists(#k)")
+                    .expressionAttributeNames(Map.of("#k", KEY_ATTRIBUTE))
+                    .build());
+            log.info("Migrated session of userId {}", userId);
+        } catch (ConditionalCheckFailedException e) {
+            log.info("Session of userId {} already exists, keeping it", userId);
+        }
+
+        Map<String, String> names = new HashMap<>();
+        List<String> remove = new ArrayList<>();
+        for (int i = 0; i < UserSession.ATTRIBUTES.size(); i++) {
+            if (item.containsKey(UserSession.ATTRIBUTES.get(i))) {
+                names.put("#a" + i, UserSession.ATTRIBUTES.get(i));
+                remove.add("#a" + i);
+            }
+        }
+        names.put("#version", "version");
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(usersTableName)
+                .key(Map.of(KEY_ATTRIBUTE, item.get(KEY_ATTRIBUTE)))
+                .updateExpression("SET #version = :version REMOVE " + String.join(", ", remove))
+                .expressionAttributeNames(names)
+                .expressionAttributeValues(Map.of(":version",
+                        AttributeValue.fromN(String.valueOf(ThreadLocalRandom.current().nextLong()))))
+                .build());
+    }
+}
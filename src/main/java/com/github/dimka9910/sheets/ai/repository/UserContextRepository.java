@@ -2,49 +2,81 @@ package com.github.dimka9910.sheets.ai.repository;
 
 import com.github.dimka9910.sheets.ai.config.AppConfig;
 import com.github.dimka9910.sheets.ai.dto.UserContext;
+import com.github.dimka9910.sheets.ai.dto.UserSession;
+import com.github.dimka9910.sheets.ai.services.RequestMetrics;
 import lombok.extern.slf4j.Slf4j;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbIndex;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
 import software.amazon.awssdk.enhanced.dynamodb.Key;
-import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
 import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
-import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Repository для работы с UserContext в DynamoDB.
+ *
+ * Запись — UpdateItem только изменённых атрибутов (по снимку UserContext.persistedState):
+ * SET изменённых полей, list_append для списков, к которым только добавили элементы
+ * (история диалога, операции), REMOVE обнулённых. Без снимка (новый контекст, PUT из API) — putItem.
+ * Точечные изменения из API (дефолты, инструкции, счета) идут UpdateItem без предварительного чтения.
+ * Сессионные атрибуты старого формата (до UserSession) удаляются из item при первой записи —
+ * к этому моменту сессия уже сохранена в своей таблице (UserContextService).
  */
 @Slf4j
 public class UserContextRepository {
 
+    // Всё, что нужно промпту о linked user — без истории, pending и операций
+    private static final List<String> PROFILE_ATTRIBUTES = List.of(
+            "userId", "userName", "displayName", "accounts", "defaultAccount", "funds", "defaultFund");
+    private static final int MAX_BATCH_GET_KEYS = 100;  // Лимит BatchGetItem
+    private static final int MAX_BATCH_GET_ATTEMPTS = 3;
+    private static final String KEY_ATTRIBUTE = "userId";
+    private static final String VERSION_ATTRIBUTE = "version";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
     private final DynamoDbTable<UserContext> table;
     private final DynamoDbIndex<UserContext> telegramIdIndex;
+    private final List<String> updatableAttributes;
 
     public UserContextRepository() {
-        String tableName = AppConfig.getUsersTableName();
-        String region = AppConfig.getAwsRegion();
-        
-        log.info("Initializing UserContextRepository with table: {}, region: {}", tableName, region);
-        
-        DynamoDbClient dynamoDbClient = DynamoDbClient.builder()
-                .region(Region.of(region))
-                .build();
+        this(DynamoDbClients.create(), AppConfig.getUsersTableName());
+        log.info("Initialized UserContextRepository with table: {}, region: {}", tableName, AppConfig.getAwsRegion());
+    }
+
+    // Конструктор для тестирования
+    public UserContextRepository(DynamoDbClient dynamoDbClient, String tableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
 
         DynamoDbEnhancedClient enhancedClient = DynamoDbEnhancedClient.builder()
                 .dynamoDbClient(dynamoDbClient)
                 .build();
 
-        this.table = enhancedClient.table(tableName, TableSchema.fromBean(UserContext.class));
-        this.telegramIdIndex = table.index("telegramId-index");
-    }
-
-    // Конструктор для тестирования
-    public UserContextRepository(DynamoDbEnhancedClient enhancedClient, String tableName) {
-        this.table = enhancedClient.table(tableName, TableSchema.fromBean(UserContext.class));
+        this.table = enhancedClient.table(tableName, UserContextSchemas.USER_CONTEXT);
         this.telegramIdIndex = table.index("telegramId-index");
+        this.updatableAttributes = table.tableSchema().attributeNames().stream()
+                .filter(name -> !name.equals(KEY_ATTRIBUTE))
+                .toList();
     }
 
     /**
@@ -53,16 +85,109 @@ public class UserContextRepository {
     public Optional<UserContext> getByUserId(String userId) {
         log.debug("Getting user context for userId: {}", userId);
         try {
-            UserContext context = table.getItem(Key.builder()
-                    .partitionValue(userId)
+            GetItemResponse response = dynamoDbClient.getItem(GetItemRequest.builder()
+                    .tableName(tableName)
+                    .key(key(userId))
                     .build());
-            return Optional.ofNullable(context);
+            return response.hasItem() && !response.item().isEmpty()
+                    ? Optional.of(fromItem(response.item()))
+                    : Optional.empty();
         } catch (Exception e) {
             log.error("Error getting user context for userId {}: {}", userId, e.getMessage(), e);
             return Optional.empty();
         }
     }
 
+    /**
+     * Только версия контекста (projection read, strongly consistent) — для проверки кэша.
+     * Пусто, если пользователя нет или чтение не удалось
+     */
+    public Optional<Long> getVersion(String userId) {
+        try {
+            GetItemResponse response = dynamoDbClient.getItem(GetItemRequest.builder()
+                    .tableName(tableName)
+                    .key(key(userId))
+                    .projectionExpression("#version")
+                    .expressionAttributeNames(Map.of("#version", "version"))
+                    .consistentRead(true)
+                    .build());
+            AttributeValue version = response.hasItem() ? response.item().get("version") : null;
+            return version != null && version.n() != null ? Optional.of(Long.parseLong(version.n())) : Optional.empty();
+        } catch (Exception e) {
+            log.warn("Error getting context version for userId {}: {}", userId, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Профили нескольких пользователей одним BatchGetItem (ProjectionExpression — только
+     * PROFILE_ATTRIBUTES). Результат — атрибуты по userId; отсутствующих пользователей в нём нет.
+     * UnprocessedKeys дочитываются повторно
+     */
+    public Map<String, Map<String, AttributeValue>> batchGetProfiles(List<String> userIds) {
+        Map<String, Map<String, AttributeValue>> result = new HashMap<>();
+        Map<String, String> names = new HashMap<>();
+        List<String> projection = new ArrayList<>();
+        for (int i = 0; i < PROFILE_ATTRIBUTES.size(); i++) {
+            names.put("#a" + i, PROFILE_ATTRIBUTES.get(i));
+            projection.add("#a" + i);
+        }
+
+        for (int from = 0; from < userIds.size(); from += MAX_BATCH_GET_KEYS) {
+            List<Map<String, AttributeValue>> keys = new ArrayList<>();
+            for (String userId : userIds.subList(from, Math.min(from + MAX_BATCH_GET_KEYS, userIds.size()))) {
+                keys.add(key(userId));
+            }
+            Map<String, KeysAndAttributes> request = Map.of(tableName, KeysAndAttributes.builder()
+                    .keys(keys)
+                    .projectionExpression(String.join(", ", projection))
+                    .expressionAttributeNames(names)
+                    .build());
+
+            for (int attempt = 1; attempt <= MAX_BATCH_GET_ATTEMPTS && !request.isEmpty(); attempt++) {
+                BatchGetItemResponse response = dynamoDbClient.batchGetItem(BatchGetItemRequest.builder()
+                        .requestItems(request)
+                        .build());
+                for (Map<String, AttributeValue> item : response.responses().getOrDefault(tableName, List.of())) {
+                    result.put(item.get(KEY_ATTRIBUTE).s(), item);
+                }
+                request = response.unprocessedKeys();
+                if (!request.isEmpty()) {
+                    backoff(attempt);
+                }
+            }
+            if (!request.isEmpty()) {
+                log.warn("BatchGetItem left unprocessed keys for {} profile(s)", request.get(tableName).keys().size());
+            }
+        }
+        return result;
+    }
+
+    private static void backoff(int attempt) {
+        try {
+            Thread.sleep(50L << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Контекст → атрибуты DynamoDB (неизменяемый снимок для кэша)
+     */
+    public Map<String, AttributeValue> toItem(UserContext context) {
+        return table.tableSchema().itemToMap(context, true);
+    }
+
+    /**
+     * Атрибуты DynamoDB → новый независимый экземпляр контекста (item запоминается как снимок
+     * для dirty tracking — не менять его после вызова)
+     */
+    public UserContext fromItem(Map<String, AttributeValue> item) {
+        UserContext context = table.tableSchema().mapToItem(item);
+        context.setPersistedState(item);
+        return context;
+    }
+
     /**
      * Получить контекст по Telegram ID (через GSI)
      */
@@ -84,19 +209,195 @@ public class UserContextRepository {
     }
 
     /**
-     * Сохранить контекст (создать или обновить)
+     * Сохранить контекст (создать или обновить). Каждая запись получает новую version.
+     * Пишутся только изменённые с последнего чтения/сохранения атрибуты; ничего не изменилось —
+     * записи нет. Если между чтением и записью item менял кто-то ещё, version контекста
+     * сбрасывается в null (снимок уже не совпадает с DynamoDB — кэшировать его нельзя).
+     * false — изменений не было, запись не понадобилась
      */
-    public void save(UserContext context) {
+    public boolean save(UserContext context) {
         log.info("Saving user context for userId: {}", context.getUserId());
         try {
-            table.putItem(context);
-            log.debug("Successfully saved user context: {}", context);
+            Map<String, AttributeValue> previous = context.getPersistedState();
+            Long previousVersion = context.getVersion();
+            context.setVersion(ThreadLocalRandom.current().nextLong());
+            Map<String, AttributeValue> item = toItem(context);
+
+            List<String> dirty = context.dirtyAttributes(item, updatableAttributes);
+            if (dirty != null && UserSessionRepository.hasLegacySession(previous)) {
+                UserSession.ATTRIBUTES.stream().filter(previous::containsKey).forEach(dirty::add);
+            }
+            if (dirty == null) {
+                dynamoDbClient.putItem(PutItemRequest.builder()
+                        .tableName(tableName)
+                        .item(item)
+                        .build());
+                RequestMetrics.count("ContextWrites.Put");
+            } else {
+                dirty.remove(VERSION_ATTRIBUTE);
+                if (dirty.isEmpty()) {
+                    context.setVersion(previousVersion);
+                    RequestMetrics.count("ContextWrites.Unchanged");
+                    log.debug("User context {} unchanged, skipping write", context.getUserId());
+                    return false;
+                }
+                if (!updateDirty(context.getUserId(), previous, item, dirty)) {
+                    log.info("User context {} was modified concurrently, snapshot is not cacheable", context.getUserId());
+                    context.setVersion(null);
+                }
+                RequestMetrics.count("ContextWrites.Update");
+                log.debug("Updated attributes {} of user context {}", dirty, context.getUserId());
+            }
+            context.setPersistedState(item);
+            return true;
         } catch (Exception e) {
             log.error("Error saving user context for userId {}: {}", context.getUserId(), e.getMessage(), e);
             throw new RuntimeException("Failed to save user context", e);
         }
     }
 
+    /**
+     * Точечное обновление без чтения: SET переданных атрибутов (значение null — REMOVE) и новая version
+     */
+    public void updateAttributes(String userId, Map<String, AttributeValue> values) {
+        log.info("Updating attributes {} for userId: {}", values.keySet(), userId);
+        Map<String, String> names = new HashMap<>();
+        Map<String, AttributeValue> expressionValues = new HashMap<>();
+        List<String> set = new ArrayList<>();
+        List<String> remove = new ArrayList<>();
+        int i = 0;
+        for (Map.Entry<String, AttributeValue> entry : values.entrySet()) {
+            String name = "#a" + i;
+            names.put(name, entry.getKey());
+            if (entry.getValue() == null) {
+                remove.add(name);
+            } else {
+                set.add(name + " = :v" + i);
+                expressionValues.put(":v" + i, entry.getValue());
+            }
+            i++;
+        }
+        update(userId, set, remove, names, expressionValues, null);
+    }
+
+    /**
+     * Добавить строку в конец списка без чтения. distinct — только если такой строки в списке ещё нет.
+     * false — элемент уже был (distinct), ничего не записано
+     */
+    public boolean appendToList(String userId, String attribute, String value, boolean distinct) {
+        log.info("Appending to {} for userId: {}", attribute, userId);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":v", AttributeValue.fromL(List.of(AttributeValue.fromS(value))));
+        values.put(":empty", AttributeValue.fromL(List.of()));
+        if (distinct) {
+            values.put(":element", AttributeValue.fromS(value));
+        }
+        try {
+            update(userId, List.of("#a = list_append(if_not_exists(#a, :empty), :v)"), List.of(),
+                    Map.of("#a", attribute), values, distinct ? "NOT contains(#a, :element)" : null);
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Удалить элемент списка по индексу без чтения (индекса или списка нет — ничего не меняется)
+     */
+    public void removeListElement(String userId, String attribute, int index) {
+        log.info("Removing {}[{}] for userId: {}", attribute, index, userId);
+        try {
+            update(userId, List.of(), List.of("#a[" + index + "]"), Map.of("#a", attribute), Map.of(),
+                    "attribute_exists(#a)");
+        } catch (ConditionalCheckFailedException e) {
+            log.debug("Nothing to remove: {} is not set for userId {}", attribute, userId);
+        }
+    }
+
+    /**
+     * UpdateItem изменённых атрибутов. true — до записи в DynamoDB была та же version, что в снимке
+     * (никто другой item не менял, снимок после записи совпадает с item)
+     */
+    private boolean updateDirty(String userId, Map<String, AttributeValue> previous,
+                                Map<String, AttributeValue> item, List<String> dirty) {
+        Map<String, String> names = new HashMap<>();
+        Map<String, AttributeValue> values = new HashMap<>();
+        List<String> set = new ArrayList<>();
+        List<String> remove = new ArrayList<>();
+        for (int i = 0; i < dirty.size(); i++) {
+            String name = "#a" + i;
+            String value = ":v" + i;
+            names.put(name, dirty.get(i));
+            AttributeValue current = item.get(dirty.get(i));
+            if (current == null) {
+                remove.add(name);
+                continue;
+            }
+            List<AttributeValue> appended = appendedElements(previous.get(dirty.get(i)), current);
+            if (appended != null) {
+                set.add(name + " = list_append(" + name + ", " + value + ")");
+                values.put(value, AttributeValue.fromL(appended));
+            } else {
+                set.add(name + " = " + value);
+                values.put(value, current);
+            }
+        }
+        values.put(":version", item.get(VERSION_ATTRIBUTE));
+
+        UpdateItemResponse response = dynamoDbClient.updateItem(updateRequest(userId, set, remove, names, values, null)
+                .returnValues(ReturnValue.UPDATED_OLD)  // Старая version — проверка, что item не меняли
+                .build());
+        return Objects.equals(response.attributes().get(VERSION_ATTRIBUTE), previous.get(VERSION_ATTRIBUTE));
+    }
+
+    /**
+     * Если в список только добавили элементы в конец — эти элементы (для list_append), иначе null
+     */
+    private static List<AttributeValue> appendedElements(AttributeValue previous, AttributeValue current) {
+        if (previous == null || !previous.hasL() || !current.hasL()) {
+            return null;
+        }
+        List<AttributeValue> before = previous.l();
+        List<AttributeValue> after = current.l();
+        if (after.size() <= before.size() || !after.subList(0, before.size()).equals(before)) {
+            return null;
+        }
+        return after.subList(before.size(), after.size());
+    }
+
+    private void update(String userId, List<String> set, List<String> remove, Map<String, String> names,
+                        Map<String, AttributeValue> values, String condition) {
+        Map<String, AttributeValue> withVersion = new HashMap<>(values);
+        withVersion.put(":version", AttributeValue.fromN(String.valueOf(ThreadLocalRandom.current().nextLong())));
+        dynamoDbClient.updateItem(updateRequest(userId, set, remove, names, withVersion, condition).build());
+    }
+
+    /**
+     * UpdateItem c SET/REMOVE частями; всегда ставит #version = :version (значение — в values)
+     */
+    private UpdateItemRequest.Builder updateRequest(String userId, List<String> set, List<String> remove,
+                                                    Map<String, String> names, Map<String, AttributeValue> values,
+                                                    String condition) {
+        List<String> setWithVersion = new ArrayList<>(set);
+        setWithVersion.add("#version = :version");
+        Map<String, String> namesWithVersion = new HashMap<>(names);
+        namesWithVersion.put("#version", VERSION_ATTRIBUTE);
+
+        String expression = "SET " + String.join(", ", setWithVersion)
+                + (remove.isEmpty() ? "" : " REMOVE " + String.join(", ", remove));
+        return UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(key(userId))
+                .updateExpression(expression)
+                .conditionExpression(condition)
+                .expressionAttributeNames(namesWithVersion)
+                .expressionAttributeValues(values);
+    }
+
+    private static Map<String, AttributeValue> key(String userId) {
+        return Map.of(KEY_ATTRIBUTE, AttributeValue.fromS(userId));
+    }
+
     /**
      * Удалить контекст
      */
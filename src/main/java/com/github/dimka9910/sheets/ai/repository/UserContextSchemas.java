@@ -0,0 +1,131 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.github.dimka9910.sheets.ai.dto.ConversationMessage;
+import com.github.dimka9910.sheets.ai.dto.OperationTypeEnum;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import com.github.dimka9910.sheets.ai.dto.UserContext;
+import com.github.dimka9910.sheets.ai.dto.UserSession;
+import software.amazon.awssdk.enhanced.dynamodb.EnhancedType;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.StaticTableSchema;
+
+import java.util.List;
+
+/**
+ * Схемы DynamoDB для контекста пользователя, собранные вручную (StaticTableSchema).
+ *
+ * TableSchema.fromBean разбирает UserContext, UserSession, ConversationMessage и ParsedCommand
+ * через reflection и генерацию lambda при каждом cold start обеих Lambda — здесь только
+ * ссылки на getter/setter. Маппинг тот же, что дают аннотации bean (имена, типы, ключи, GSI):
+ * новое поле в DTO нужно добавить и сюда.
+ */
+public final class UserContextSchemas {
+
+    private static final EnhancedType<List<String>> STRING_LIST = EnhancedType.listOf(String.class);
+
+    public static final StaticTableSchema<ConversationMessage> CONVERSATION_MESSAGE =
+            StaticTableSchema.builder(ConversationMessage.class)
+                    .newItemSupplier(ConversationMessage::new)
+                    .addAttribute(String.class, a -> a.name("content")
+                            .getter(ConversationMessage::getContent).setter(ConversationMessage::setContent))
+                    .addAttribute(String.class, a -> a.name("role")
+                            .getter(ConversationMessage::getRole).setter(ConversationMessage::setRole))
+                    .addAttribute(Long.class, a -> a.name("timestamp")
+                            .getter(ConversationMessage::getTimestamp).setter(ConversationMessage::setTimestamp))
+                    .addAttribute(Boolean.class, a -> a.name("wasClarification")
+                            .getter(ConversationMessage::getWasClarification)
+                            .setter(ConversationMessage::setWasClarification))
+                    .build();
+
+    public static final StaticTableSchema<ParsedCommand> PARSED_COMMAND =
+            StaticTableSchema.builder(ParsedCommand.class)
+                    .newItemSupplier(ParsedCommand::new)
+                    .addAttribute(String.class, a -> a.name("accountName")
+                            .getter(ParsedCommand::getAccountName).setter(ParsedCommand::setAccountName))
+                    .addAttribute(Double.class, a -> a.name("amount")
+                            .getter(ParsedCommand::getAmount).setter(ParsedCommand::setAmount))
+                    .addAttribute(String.class, a -> a.name("clarification")
+                            .getter(ParsedCommand::getClarification).setter(ParsedCommand::setClarification))
+                    .addAttribute(String.class, a -> a.name("comment")
+                            .getter(ParsedCommand::getComment).setter(ParsedCommand::setComment))
+                    .addAttribute(String.class, a -> a.name("currency")
+                            .getter(ParsedCommand::getCurrency).setter(ParsedCommand::setCurrency))
+                    .addAttribute(String.class, a -> a.name("errorMessage")
+                            .getter(ParsedCommand::getErrorMessage).setter(ParsedCommand::setErrorMessage))
+                    .addAttribute(String.class, a -> a.name("fundName")
+                            .getter(ParsedCommand::getFundName).setter(ParsedCommand::setFundName))
+                    .addAttribute(OperationTypeEnum.class, a -> a.name("operationType")
+                            .getter(ParsedCommand::getOperationType).setter(ParsedCommand::setOperationType))
+                    .addAttribute(String.class, a -> a.name("secondAccount")
+                            .getter(ParsedCommand::getSecondAccount).setter(ParsedCommand::setSecondAccount))
+                    .addAttribute(String.class, a -> a.name("secondCurrency")
+                            .getter(ParsedCommand::getSecondCurrency).setter(ParsedCommand::setSecondCurrency))
+                    .addAttribute(String.class, a -> a.name("secondPerson")
+                            .getter(ParsedCommand::getSecondPerson).setter(ParsedCommand::setSecondPerson))
+                    // boolean в bean mapping — тоже Boolean; null не приходит в setter
+                    .addAttribute(Boolean.class, a -> a.name("understood")
+                            .getter(ParsedCommand::isUnderstood)
+                            .setter((command, value) -> command.setUnderstood(Boolean.TRUE.equals(value))))
+                    .build();
+
+    public static final StaticTableSchema<UserContext> USER_CONTEXT =
+            StaticTableSchema.builder(UserContext.class)
+                    .newItemSupplier(UserContext::new)
+                    .addAttribute(String.class, a -> a.name("userId")
+                            .getter(UserContext::getUserId).setter(UserContext::setUserId)
+                            .tags(StaticAttributeTags.primaryPartitionKey()))
+                    .addAttribute(String.class, a -> a.name("telegramId")
+                            .getter(UserContext::getTelegramId).setter(UserContext::setTelegramId)
+                            .tags(StaticAttributeTags.secondaryPartitionKey("telegramId-index")))
+                    .addAttribute(STRING_LIST, a -> a.name("accounts")
+                            .getter(UserContext::getAccounts).setter(UserContext::setAccounts))
+                    .addAttribute(STRING_LIST, a -> a.name("customInstructions")
+                            .getter(UserContext::getCustomInstructions).setter(UserContext::setCustomInstructions))
+                    .addAttribute(Boolean.class, a -> a.name("debugMode")
+                            .getter(UserContext::getDebugMode).setter(UserContext::setDebugMode))
+                    .addAttribute(String.class, a -> a.name("defaultAccount")
+                            .getter(UserContext::getDefaultAccount).setter(UserContext::setDefaultAccount))
+                    .addAttribute(String.class, a -> a.name("defaultCurrency")
+                            .getter(UserContext::getDefaultCurrency).setter(UserContext::setDefaultCurrency))
+                    .addAttribute(String.class, a -> a.name("defaultFund")
+                            .getter(UserContext::getDefaultFund).setter(UserContext::setDefaultFund))
+                    .addAttribute(String.class, a -> a.name("displayName")
+                            .getter(UserContext::getDisplayName).setter(UserContext::setDisplayName))
+                    .addAttribute(STRING_LIST, a -> a.name("funds")
+                            .getter(UserContext::getFunds).setter(UserContext::setFunds))
+                    .addAttribute(STRING_LIST, a -> a.name("linkedUsers")
+                            .getter(UserContext::getLinkedUsers).setter(UserContext::setLinkedUsers))
+                    .addAttribute(String.class, a -> a.name("onboardingState")
+                            .getter(UserContext::getOnboardingState).setter(UserContext::setOnboardingState))
+                    .addAttribute(String.class, a -> a.name("preferredLanguage")
+                            .getter(UserContext::getPreferredLanguage).setter(UserContext::setPreferredLanguage))
+                    .addAttribute(String.class, a -> a.name("userName")
+                            .getter(UserContext::getUserName).setter(UserContext::setUserName))
+                    .addAttribute(Long.class, a -> a.name("version")
+                            .getter(UserContext::getVersion).setter(UserContext::setVersion))
+                    .build();
+
+    public static final StaticTableSchema<UserSession> USER_SESSION =
+            StaticTableSchema.builder(UserSession.class)
+                    .newItemSupplier(UserSession::new)
+                    .addAttribute(String.class, a -> a.name("userId")
+                            .getter(UserSession::getUserId).setter(UserSession::setUserId)
+                            .tags(StaticAttributeTags.primaryPartitionKey()))
+                    .addAttribute(EnhancedType.listOf(ConversationMessage.class), a -> a.name("conversationHistory")
+                            .getter(UserSession::getConversationHistory).setter(UserSession::setConversationHistory)
+                            .attributeConverter(new CompressedListConverter.ConversationHistory()))
+                    .addAttribute(Long.class, a -> a.name("expiresAt")
+                            .getter(UserSession::getExpiresAt).setter(UserSession::setExpiresAt))
+                    .addAttribute(EnhancedType.listOf(ParsedCommand.class), a -> a.name("lastOperations")
+                            .getter(UserSession::getLastOperations).setter(UserSession::setLastOperations)
+                            .attributeConverter(new CompressedListConverter.ParsedCommands()))
+                    .addAttribute(EnhancedType.listOf(ParsedCommand.class), a -> a.name("pendingCommands")
+                            .getter(UserSession::getPendingCommands).setter(UserSession::setPendingCommands)
+                            .attributeConverter(new CompressedListConverter.ParsedCommands()))
+                    .addAttribute(String.class, a -> a.name("pendingSuggestion")
+                            .getter(UserSession::getPendingSuggestion).setter(UserSession::setPendingSuggestion))
+                    .build();
+
+    private UserContextSchemas() {
+    }
+}
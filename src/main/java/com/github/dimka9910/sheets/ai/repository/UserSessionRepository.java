@@ -0,0 +1,148 @@
+package com.github.dimka9910.sheets.ai.repository;
+
+import com.github.dimka9910.sheets.ai.config.AppConfig;
+import com.github.dimka9910.sheets.ai.dto.UserSession;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Repository для сессий диалога (UserSession) в DynamoDB.
+ *
+ * Сессия пишется целиком (она небольшая: история обрезана, операций не больше 5),
+ * каждая запись продлевает TTL. Просроченные, но ещё не удалённые DynamoDB сессии не читаются.
+ */
+@Slf4j
+public class UserSessionRepository {
+
+    static final Duration SESSION_TTL = Duration.ofDays(7);  // Дольше уточнения и отмены не ждут
+
+    private static final String KEY_ATTRIBUTE = "userId";
+    private static final String EXPIRES_AT_ATTRIBUTE = "expiresAt";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final TableSchema<UserSession> tableSchema;
+
+    public UserSessionRepository() {
+        this(DynamoDbClients.create(), AppConfig.getSessionsTableName());
+        log.info("Initialized UserSessionRepository with table: {}", tableName);
+    }
+
+    // Конструктор для тестирования
+    public UserSessionRepository(DynamoDbClient dynamoDbClient, String tableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        this.tableSchema = UserContextSchemas.USER_SESSION;
+    }
+
+    /**
+     * Сессия пользователя (strongly consistent — следующее сообщение может прийти в другой контейнер).
+     * Пусто, если сессии нет, она просрочена или не читается (битый item).
+     * Ошибки DynamoDB пробрасываются: "сессии нет" вместо временного сбоя потеряло бы pending уточнения
+     * при следующей записи, а так сообщение уйдёт в retry (ErrorClassifier)
+     */
+    public Optional<UserSession> get(String userId) {
+        GetItemResponse response = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(tableName)
+                .key(key(userId))
+                .consistentRead(true)
+                .build());
+        if (!response.hasItem() || response.item().isEmpty()) {
+            return Optional.empty();
+        }
+        UserSession session;
+        try {
+            session = tableSchema.mapToItem(response.item());
+        } catch (Exception e) {
+            // Повтор прочитает то же самое — начинаем с пустой сессии
+            log.error("Unreadable session for userId {}: {}", userId, e.getMessage(), e);
+            return Optional.empty();
+        }
+        if (session.getExpiresAt() != null && session.getExpiresAt() < System.currentTimeMillis() / 1000) {
+            return Optional.empty();
+        }
+        return Optional.of(session);
+    }
+
+    /**
+     * Сессия из атрибутов старого формата (сессионные поля в item профиля) — для миграции
+     */
+    public UserSession fromLegacyItem(Map<String, AttributeValue> profileItem) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(KEY_ATTRIBUTE, profileItem.get(KEY_ATTRIBUTE));
+        for (String name : UserSession.ATTRIBUTES) {
+            if (profileItem.containsKey(name)) {
+                item.put(name, profileItem.get(name));
+            }
+        }
+        return tableSchema.mapToItem(item);
+    }
+
+    /**
+     * Есть ли в item профиля сессионные атрибуты старого формата
+     */
+    public static boolean hasLegacySession(Map<String, AttributeValue> profileItem) {
+        return profileItem != null && UserSession.ATTRIBUTES.stream().anyMatch(profileItem::containsKey);
+    }
+
+    /**
+     * Сессия → атрибуты без TTL (снимок, чтобы не писать неизменившуюся сессию)
+     */
+    public Map<String, AttributeValue> toItem(UserSession session) {
+        Map<String, AttributeValue> item = new HashMap<>(tableSchema.itemToMap(session, true));
+        item.remove(EXPIRES_AT_ATTRIBUTE);
+        return item;
+    }
+
+    /**
+     * Сохранить сессию целиком с новым TTL
+     */
+    public void save(UserSession session) {
+        log.info("Saving session for userId: {}", session.getUserId());
+        try {
+            session.setExpiresAt(expiresAt());
+            dynamoDbClient.putItem(PutItemRequest.builder()
+                    .tableName(tableName)
+                    .item(tableSchema.itemToMap(session, true))
+                    .build());
+        } catch (Exception e) {
+            log.error("Error saving session for userId {}: {}", session.getUserId(), e.getMessage(), e);
+            throw new RuntimeException("Failed to save user session", e);
+        }
+    }
+
+    /**
+     * Удалить сессию
+     */
+    public void delete(String userId) {
+        log.info("Deleting session for userId: {}", userId);
+        try {
+            dynamoDbClient.deleteItem(DeleteItemRequest.builder()
+                    .tableName(tableName)
+                    .key(key(userId))
+                    .build());
+        } catch (Exception e) {
+            log.error("Error deleting session for userId {}: {}", userId, e.getMessage(), e);
+            throw new RuntimeException("Failed to delete user session", e);
+        }
+    }
+
+    static long expiresAt() {
+        return (System.currentTimeMillis() + SESSION_TTL.toMillis()) / 1000;
+    }
+
+    private static Map<String, AttributeValue> key(String userId) {
+        return Map.of(KEY_ATTRIBUTE, AttributeValue.fromS(userId));
+    }
+}
@@ -1,7 +1,9 @@
 package com.github.dimka9910.sheets.ai.services;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.github.dimka9910.sheets.ai.config.AppConfig;
 import com.github.dimka9910.sheets.ai.dto.OperationTypeEnum;
 import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
@@ -9,52 +11,56 @@ import com.github.dimka9910.sheets.ai.dto.ParsedCommandList;
 import com.github.dimka9910.sheets.ai.dto.UserContext;
 import lombok.extern.slf4j.Slf4j;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 @Slf4j
 public class AICommandParser {
 
-    private static final String OPENAI_API_URL = "https://api.openai.com/v1/chat/completions";
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
     
-    // Модель и цены - легко менять
-    private static final String MODEL = "gpt-5-mini";
-    private static final double INPUT_PRICE_PER_1M = 0.25;  // gpt-5-mini
-    private static final double OUTPUT_PRICE_PER_1M = 2.00; // gpt-5-mini (includes reasoning)
+    // Модели, reasoning effort и цены — в ModelRouter.Tier
     
-    private final String apiKey;
-    private final HttpClient httpClient;
+    // Скользящее среднее латентности OpenAI (EWMA) за время жизни warm-контейнера.
+    // Стартовое значение — типичный round trip gpt-5-mini.
+    private static final long INITIAL_LATENCY_ESTIMATE_MS = 4000;
+    private static final AtomicLong averageLatencyMillis = new AtomicLong(INITIAL_LATENCY_ESTIMATE_MS);
+    
+    private final LlmClient llmClient;
     private final ObjectMapper objectMapper;
+    private final ObjectReader resultReader;
     private final PromptBuilder promptBuilder;
+    private final ParseResultCache parseCache;
+    private final ModelRouter modelRouter = new ModelRouter();
+    private final boolean streaming;
 
     public AICommandParser() {
-        this.apiKey = AppConfig.getOpenAiApiKey();
+        String apiKey = AppConfig.getOpenAiApiKey();
         if (apiKey == null || apiKey.isBlank()) {
             throw new IllegalStateException(
                     "OpenAI API key not set. Add it to application.properties or set OPENAI_API_KEY env variable");
         }
 
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(10))
-                .build();
+        this.llmClient = LlmClient.getShared();
         this.objectMapper = new ObjectMapper();
+        this.resultReader = objectMapper.readerFor(ParsedCommandList.class);
         this.promptBuilder = new PromptBuilder();
+        this.parseCache = new ParseResultCache();
+        this.streaming = AppConfig.isOpenAiStreamingEnabled();
     }
 
     // Конструктор для тестирования
-    public AICommandParser(String apiKey) {
-        this.apiKey = apiKey;
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(10))
-                .build();
+    public AICommandParser(LlmClient llmClient) {
+        this.llmClient = llmClient;
         this.objectMapper = new ObjectMapper();
+        this.resultReader = objectMapper.readerFor(ParsedCommandList.class);
         this.promptBuilder = new PromptBuilder();
+        this.parseCache = new ParseResultCache();
+        this.streaming = AppConfig.isOpenAiStreamingEnabled();
     }
 
     /**
@@ -62,84 +68,229 @@ public class AICommandParser {
      * Поддерживает multi-command: "кофе 300, такси 500" → 2 операции
      */
     public ParsedCommandList parseMultiple(String userMessage, UserContext userContext) {
+        return parseMultiple(userMessage, userContext, null);
+    }
+
+    /**
+     * То же, но в streaming режиме отдаёт каждую команду в onCommand сразу, как только
+     * AI закончил её объект в JSON — не дожидаясь конца ответа.
+     * Это preview: итоговый результат (understood, clarification) известен только после возврата.
+     * onCommand вызывается только для команд, реально пришедших streaming'ом: попадание в кэш
+     * и не-streaming вызов его не вызывают — раньше результата там показывать нечего.
+     *
+     * @throws LlmException временный сбой OpenAI (см. ErrorClassifier) — запрос можно повторить позже
+     */
+    public ParsedCommandList parseMultiple(String userMessage, UserContext userContext,
+                                           Consumer<ParsedCommand> onCommand) {
         log.info("Parsing message (multi-command) with context: {}", userMessage);
 
+        // Повторы ("кофе 300", "обед 800") при том же контексте — отдаём из кэша без вызова OpenAI
+        ParsedCommandList cached = parseCache.get(userMessage, userContext);
+        if (cached != null) {
+            return cached;
+        }
+
         try {
-            String prompt = promptBuilder.buildPrompt(userContext, userMessage);
-            log.debug("Full prompt length: {} chars", prompt.length());
+            PromptBuilder.Prompt prompt = RequestMetrics.time(RequestMetrics.PROMPT_BUILD,
+                    () -> promptBuilder.buildMessages(userContext, userMessage));
+            log.debug("Full prompt length: {} chars (profile={}, turn={})", prompt.length(),
+                    prompt.userProfile().length(), prompt.conversationTurn().length());
             
-            // Вызываем OpenAI API напрямую
-            JsonNode apiResponse = callOpenAI(prompt);
+            // Простые сообщения — дешёвый тир, сложные — сразу стандартный
+            ModelRouter.Tier tier = modelRouter.route(userMessage, userContext);
+            Attempt attempt = callTier(tier, prompt, onCommand);
+            int tokens = attempt.tokens();
+            StringBuilder usageInfo = new StringBuilder(attempt.summary());
             
-            // Извлекаем ответ
-            String content = apiResponse.path("choices").get(0).path("message").path("content").asText();
-            log.info("AI response: {}", content);
+            ModelRouter.Tier escalateTo = tier.next();
+            boolean escalate = escalateTo != null && (attempt.result() == null || modelRouter.needsEscalation(attempt.result()));
+            ModelRouter.record(tier, attempt.latencyMillis(), attempt.tokens(), escalate);
             
-            // Извлекаем token usage
-            String tokenUsageStr = extractTokenUsage(apiResponse);
+            if (escalate) {
+                log.info("Escalating {} -> {} (understood={})", tier, escalateTo,
+                        attempt.result() != null && attempt.result().isUnderstood());
+                // Preview команды дешёвого тира уже ушли в listener — повторно не отдаём
+                attempt = callTier(escalateTo, prompt, attempt.streamedCommands() ? null : onCommand);
+                ModelRouter.record(escalateTo, attempt.latencyMillis(), attempt.tokens(), false);
+                tokens += attempt.tokens();
+                usageInfo.append("\n⬆️ escalated ").append(tier).append(" → ").append(escalateTo)
+                        .append("\n").append(attempt.summary());
+            }
             
-            // Парсим JSON ответ
-            String cleanJson = cleanJsonResponse(content);
-            ParsedCommandList result = objectMapper.readValue(cleanJson, ParsedCommandList.class);
-            result.setTokenUsage(tokenUsageStr);
+            ParsedCommandList result = attempt.result();
+            if (result == null) {
+                throw new IllegalStateException("AI returned invalid JSON");
+            }
+            parseCache.put(userMessage, userContext, result, tokens);
+            result.setTokenUsage(usageInfo.toString());
             return result;
 
+        } catch (LlmException e) {
+            // Временный сбой OpenAI (таймаут, 429, 5xx, circuit open) — пусть вызывающий решит,
+            // повторить позже (SQS redelivery) или ответить пользователю
+            if (ErrorClassifier.isRetryable(e)) {
+                log.warn("Transient OpenAI failure: {}", e.getMessage());
+                throw e;
+            }
+            return errorResult(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LlmException("Interrupted while calling OpenAI", 0, false, e);
         } catch (Exception e) {
-            log.error("Error parsing command: {}", e.getMessage(), e);
-            return ParsedCommandList.builder()
-                    .commands(List.of())
-                    .understood(false)
-                    .errorMessage("Error: " + e.getMessage())
-                    .clarification("Sorry, please try again.")
-                    .build();
+            return errorResult(e);
         }
     }
-    
+
+    private ParsedCommandList errorResult(Exception e) {
+        log.error("Error parsing command: {}", e.getMessage(), e);
+        return ParsedCommandList.builder()
+                .commands(List.of())
+                .understood(false)
+                .errorMessage("Error: " + e.getMessage())
+                .clarification("Sorry, please try again.")
+                .build();
+    }
+
     /**
-     * Вызывает OpenAI API напрямую через HTTP
+     * Один вызов OpenAI на заданном тире. result = null, если ответ не разобрался как JSON
+     * (например, дешёвый тир упёрся в лимит токенов) — это тоже повод для эскалации.
      */
-    private JsonNode callOpenAI(String prompt) throws Exception {
-        Map<String, Object> requestBody = new HashMap<>();
-        requestBody.put("model", MODEL);
-        // gpt-5-mini (reasoning model): use max_completion_tokens, no temperature
-        // Increased from 2000 to 4000 for complex multi-person expenses
-        requestBody.put("max_completion_tokens", 4000);
-        requestBody.put("messages", List.of(
-                Map.of("role", "user", "content", prompt)
-        ));
-        
-        String jsonBody = objectMapper.writeValueAsString(requestBody);
+    private Attempt callTier(ModelRouter.Tier tier, PromptBuilder.Prompt prompt,
+                             Consumer<ParsedCommand> onCommand) throws Exception {
+        long startedAt = System.currentTimeMillis();
+        Completion completion = streaming
+                ? callOpenAIStreaming(tier, prompt.toMessages(), onCommand, startedAt)
+                : callOpenAI(tier, prompt.toMessages());
+        long totalMillis = System.currentTimeMillis() - startedAt;
+        recordLatency(totalMillis);
+        RequestMetrics.record(RequestMetrics.OPENAI_CALL, totalMillis);
         
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(OPENAI_API_URL))
-                .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + apiKey)
-                .timeout(Duration.ofSeconds(60))
-                .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
-                .build();
+        String content = completion.content();
+        log.info("AI response ({}): {}", tier, content);
         
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        // Извлекаем token usage
+        TokenUsage tokenUsage = extractTokenUsage(completion.usage(), tier);
+        String latency = completion.firstCommandMillis() >= 0
+                ? String.format("⏱ first command %d ms, total %d ms", completion.firstCommandMillis(), totalMillis)
+                : String.format("⏱ total %d ms", totalMillis);
+        log.info("OpenAI latency ({}): {}", tier, latency);
         
-        if (response.statusCode() != 200) {
-            log.error("OpenAI API error: {} - {}", response.statusCode(), response.body());
-            throw new RuntimeException("OpenAI API error: " + response.statusCode());
+        // Парсим JSON ответ (один раз — из накопленного текста)
+        ParsedCommandList result;
+        long parseStartedAt = System.currentTimeMillis();
+        try {
+            result = resultReader.readValue(cleanJsonResponse(content));
+        } catch (JsonProcessingException e) {
+            log.warn("Invalid JSON from {}: {}", tier, e.getOriginalMessage());
+            result = null;
+        } finally {
+            RequestMetrics.record(RequestMetrics.JSON_PARSE, System.currentTimeMillis() - parseStartedAt);
         }
         
-        return objectMapper.readTree(response.body());
+        String summary = tokenUsage != null ? tokenUsage.format() + "\n" + latency : latency;
+        return new Attempt(result, tokenUsage != null ? tokenUsage.total() : 0, totalMillis,
+                completion.firstCommandMillis() >= 0, summary);
+    }
+
+    /**
+     * Результат вызова одного тира
+     */
+    private record Attempt(ParsedCommandList result, int tokens, long latencyMillis,
+                           boolean streamedCommands, String summary) {
+    }
+
+    /**
+     * Средняя латентность вызова OpenAI в этом контейнере (для оценки сэкономленного времени)
+     */
+    public static long getAverageLatencyMillis() {
+        return averageLatencyMillis.get();
+    }
+
+    private static void recordLatency(long latencyMillis) {
+        averageLatencyMillis.updateAndGet(avg -> (avg * 4 + latencyMillis) / 5);
+    }
+    
+    /**
+     * Вызывает OpenAI API напрямую через HTTP.
+     * messages: стабильный system префикс первым — так работает prompt caching у OpenAI.
+     */
+    private Completion callOpenAI(ModelRouter.Tier tier, List<Map<String, String>> messages) throws Exception {
+        JsonNode apiResponse = llmClient.complete(buildRequestBody(tier, messages, false), REQUEST_TIMEOUT);
+        String content = apiResponse.path("choices").get(0).path("message").path("content").asText();
+        return new Completion(content, apiResponse.path("usage"), -1);
+    }
+
+    /**
+     * Streaming вызов (server-sent events): копим текст и параллельно разбираем его
+     * инкрементально — готовые команды уходят в onCommand до завершения ответа.
+     */
+    private Completion callOpenAIStreaming(ModelRouter.Tier tier, List<Map<String, String>> messages,
+                                           Consumer<ParsedCommand> onCommand, long startedAt) throws Exception {
+        StringBuilder content = new StringBuilder();
+        JsonNode[] usage = {null};
+        long[] firstCommandMillis = {-1};
+        StreamingCommandExtractor extractor = new StreamingCommandExtractor(objectMapper, command -> {
+            if (firstCommandMillis[0] < 0) {
+                firstCommandMillis[0] = System.currentTimeMillis() - startedAt;
+            }
+            if (onCommand != null) {
+                onCommand.accept(command);
+            }
+        });
+        
+        llmClient.stream(buildRequestBody(tier, messages, true), REQUEST_TIMEOUT, chunk -> {
+            JsonNode choices = chunk.path("choices");
+            if (choices.isArray() && choices.size() > 0) {
+                String delta = choices.get(0).path("delta").path("content").asText("");
+                if (!delta.isEmpty()) {
+                    content.append(delta);
+                    extractor.feed(delta);
+                }
+            }
+            // Последний chunk (stream_options.include_usage) содержит usage
+            if (chunk.hasNonNull("usage")) {
+                usage[0] = chunk.get("usage");
+            }
+        });
+        
+        return new Completion(content.toString(), usage[0], firstCommandMillis[0]);
+    }
+
+    private Map<String, Object> buildRequestBody(ModelRouter.Tier tier, List<Map<String, String>> messages,
+                                                 boolean stream) {
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("model", tier.getModel());
+        // gpt-5-mini (reasoning model): use max_completion_tokens and reasoning_effort, no temperature
+        requestBody.put("max_completion_tokens", tier.getMaxCompletionTokens());
+        requestBody.put("reasoning_effort", tier.getReasoningEffort());
+        requestBody.put("messages", messages);
+        if (stream) {
+            requestBody.put("stream", true);
+            requestBody.put("stream_options", Map.of("include_usage", true));
+        }
+        return requestBody;
+    }
+
+    /**
+     * Результат вызова OpenAI: текст ответа, usage и время до первой команды (-1 если не streaming)
+     */
+    private record Completion(String content, JsonNode usage, long firstCommandMillis) {
     }
     
     /**
      * Извлекает информацию о токенах и считает стоимость
      */
-    private String extractTokenUsage(JsonNode apiResponse) {
-        JsonNode usage = apiResponse.path("usage");
-        if (usage.isMissingNode()) {
+    private TokenUsage extractTokenUsage(JsonNode usage, ModelRouter.Tier tier) {
+        if (usage == null || usage.isMissingNode() || usage.isNull()) {
             return null;
         }
         
         int inputTokens = usage.path("prompt_tokens").asInt();
         int outputTokens = usage.path("completion_tokens").asInt();
         
+        // Сколько input токенов пришло из prompt cache (стабильный префикс)
+        int cachedTokens = usage.path("prompt_tokens_details").path("cached_tokens").asInt(0);
+        
         // Проверяем reasoning tokens (для gpt-5-mini и подобных)
         JsonNode completionDetails = usage.path("completion_tokens_details");
         int reasoningTokens = 0;
@@ -147,23 +298,34 @@ public class AICommandParser {
             reasoningTokens = completionDetails.path("reasoning_tokens").asInt();
         }
         
-        double inputCost = inputTokens * INPUT_PRICE_PER_1M / 1_000_000;
-        double outputCost = outputTokens * OUTPUT_PRICE_PER_1M / 1_000_000;
-        double totalCost = inputCost + outputCost;
-        
-        String result;
-        if (reasoningTokens > 0) {
-            result = String.format("🔢 in=%d, out=%d (reason=%d) | 💰 ~$%.5f (%s)", 
-                    inputTokens, outputTokens, reasoningTokens, totalCost, MODEL);
-        } else {
-            result = String.format("🔢 in=%d, out=%d | 💰 ~$%.5f (%s)", 
-                    inputTokens, outputTokens, totalCost, MODEL);
-        }
-        
-        log.info("Token usage: {}", result);
+        TokenUsage result = new TokenUsage(tier, inputTokens, cachedTokens, outputTokens, reasoningTokens);
+        log.info("Token usage: {}", result.format());
         return result;
     }
 
+    /**
+     * Потраченные токены одного вызова OpenAI
+     */
+    private record TokenUsage(ModelRouter.Tier tier, int inputTokens, int cachedTokens, int outputTokens,
+                              int reasoningTokens) {
+
+        int total() {
+            return inputTokens + outputTokens;
+        }
+
+        String format() {
+            double totalCost = tier.cost(inputTokens, cachedTokens, outputTokens);
+            int cachedPercent = inputTokens > 0 ? cachedTokens * 100 / inputTokens : 0;
+            
+            if (reasoningTokens > 0) {
+                return String.format("🔢 in=%d (cached=%d, %d%%), out=%d (reason=%d) | 💰 ~$%.5f (%s)", 
+                        inputTokens, cachedTokens, cachedPercent, outputTokens, reasoningTokens, totalCost, tier.getModel() + "/" + tier.getReasoningEffort());
+            }
+            return String.format("🔢 in=%d (cached=%d, %d%%), out=%d | 💰 ~$%.5f (%s)", 
+                    inputTokens, cachedTokens, cachedPercent, outputTokens, totalCost, tier.getModel() + "/" + tier.getReasoningEffort());
+        }
+    }
+
     /**
      * Парсит команду с учётом контекста пользователя.
      * @deprecated Используй parseMultiple() для поддержки нескольких команд
@@ -204,12 +366,11 @@ public class AICommandParser {
 
         try {
             String prompt = promptBuilder.buildSimplePrompt(userMessage);
-            JsonNode apiResponse = callOpenAI(prompt);
-            String content = apiResponse.path("choices").get(0).path("message").path("content").asText();
+            String content = callOpenAI(ModelRouter.Tier.STANDARD, List.of(Map.of("role", "user", "content", prompt))).content();
             log.info("AI response: {}", content);
 
             String cleanJson = cleanJsonResponse(content);
-            ParsedCommandList result = objectMapper.readValue(cleanJson, ParsedCommandList.class);
+            ParsedCommandList result = resultReader.readValue(cleanJson);
             
             if (result.getCommands() != null && !result.getCommands().isEmpty()) {
                 ParsedCommand first = result.getFirst();
@@ -4,7 +4,13 @@ import com.github.dimka9910.sheets.ai.dto.*;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * Основной сервис обработки команд из чата.
@@ -18,6 +24,8 @@ import java.util.List;
 public class ChatCommandService {
 
     private final AICommandParser aiCommandParser;
+    private final LocalCommandParser localCommandParser = new LocalCommandParser();
+    private final NameResolver nameResolver = new NameResolver();
     private final SQSPublisher sqsPublisher;
     private final UserContextService userContextService;
     private final ConversationService conversationService;
@@ -52,16 +60,63 @@ public class ChatCommandService {
      * Обрабатывает запрос из чата
      */
     public ChatResponse processCommand(ChatRequest request) {
+        return processCommand(request, null);
+    }
+
+    /**
+     * Обрабатывает запрос из чата.
+     * onCommand получает команды, пришедшие streaming'ом из AI, как только они готовы —
+     * до валидации и отправки в очереди (fast-path и кэш его не вызывают). Может быть null.
+     *
+     * Все сообщения в SQS (записи для Sheets и ответ) уходят одним flush в конце —
+     * batch вызовами вместо отдельного sendMessage на каждую команду.
+     * Так же и контекст: каждый пользователь читается максимум раз и пишется максимум раз в конце
+     * (unit of work UserContextService).
+     * Порядок как до батчинга: сначала SQS, потом контекст. Если SendMessageBatch упал, изменённый
+     * контекст (история, очищенные pending, снятые lastOperations) не сохранён, и retry SQS
+     * обрабатывает сообщение с исходным состоянием — undo/коррекция не применятся дважды.
+     */
+    public ChatResponse processCommand(ChatRequest request, Consumer<ParsedCommand> onCommand) {
+        userContextService.begin();
+        try {
+            ChatResponse response = handleCommand(request, onCommand);
+            sqsPublisher.flush();
+            userContextService.flush();
+            return response;
+        } finally {
+            userContextService.discard();
+            sqsPublisher.discard();
+        }
+    }
+
+    /**
+     * Ждёт ли бот ответа пользователя: да/нет на предложение инструкции, уточнение pending команд
+     * или шаг онбординга. Следующее сообщение — ответ, его нельзя склеивать с другими
+     */
+    public boolean isAwaitingReply(String userId) {
+        UserContext userContext = userContextService.getContext(userId);
+        return (userContext.getPendingSuggestion() != null && !userContext.getPendingSuggestion().isBlank())
+                || (userContext.getPendingCommands() != null && !userContext.getPendingCommands().isEmpty())
+                || onboardingService.needsOnboarding(userContext);
+    }
+
+    private ChatResponse handleCommand(ChatRequest request, Consumer<ParsedCommand> onCommand) {
         log.info("Processing command from user {}: {}", request.getUserName(), request.getMessage());
 
         String userId = request.getUserId();
         String message = request.getMessage() != null ? request.getMessage().trim() : "";
 
+        // Профили linked users грузятся параллельно с контекстом пользователя (список — из кэша)
+        CompletableFuture<Map<String, UserContext>> prefetched =
+                userContextService.prefetchLinkedProfiles(userId, this::extractUserId);
+
         // Получаем контекст пользователя
-        UserContext userContext = userContextService.getContext(userId);
+        UserContext userContext = RequestMetrics.time(RequestMetrics.CONTEXT_LOAD,
+                () -> userContextService.getContext(userId));
         
         // Загружаем контексты linked users для полного контекста в промпте
-        loadLinkedUserContexts(userContext);
+        RequestMetrics.time(RequestMetrics.LINKED_CONTEXTS_LOAD,
+                () -> loadLinkedUserContexts(userContext, prefetched));
         
         // Admin commands — обрабатываем ДО всего остального
         // Это служебные команды, не зависят от языка, начинаются с /
@@ -104,8 +159,17 @@ public class ChatCommandService {
         // Добавляем сообщение пользователя в историю
         conversationService.addToHistory(userContext, ConversationMessage.userMessage(message));
 
+        // Fast-path: простые траты ("кофе 300") парсим локально, без round trip в OpenAI.
+        // Только для новой команды — уточнения и pending всегда идут в AI.
+        ParsedCommandList parsedList = null;
+        if (isNewCommand) {
+            parsedList = localCommandParser.tryParse(message, userContext);
+        }
+        
         // Парсим команду через AI (финансовая или мета-команда — AI сам определит)
-        ParsedCommandList parsedList = aiCommandParser.parseMultiple(message, userContext);
+        if (parsedList == null) {
+            parsedList = aiCommandParser.parseMultiple(message, userContext, onCommand);
+        }
         log.info("Parsed commands: {} (count: {}), metaCommand: {}", 
                 parsedList, parsedList.size(), parsedList.getMetaCommand());
         
@@ -134,6 +198,13 @@ public class ChatCommandService {
             parsedList.setCommands(newCmds);
         }
         
+        // Приводим счета/фонды к каноническим именам (опечатки, регистр, транслит) —
+        // без лишнего уточнения у AI и без мусора в Sheets
+        boolean isMetaCommand = parsedList.getMetaCommand() != null && parsedList.getMetaCommand().isPresent();
+        if (!isMetaCommand) {
+            nameResolver.resolve(parsedList, userContext);
+        }
+        
         // Проверяем: это мета-команда? (AI определил)
         if (parsedList.getMetaCommand() != null && parsedList.getMetaCommand().isPresent()) {
             ChatResponse metaResponse = handleAIMetaCommand(request, parsedList, userContext);
@@ -172,13 +243,13 @@ public class ChatCommandService {
                 ParsedCommand lastOp = userContext.popLastOperation();
                 if (lastOp != null) {
                     log.info("Correction detected. Canceling old operation: {}", lastOp);
-                    sendCancelOperation(userContext, lastOp);
+                    sendCancelOperation(request, userContext, lastOp);
                 }
             }
             
             // Отправляем новые команды
             for (ParsedCommand cmd : parsedList.getCommands()) {
-                sendToSheetsLambda(userContext, cmd);
+                sendToSheetsLambda(request, userContext, cmd);
                 // Сохраняем для возможности отмены
                 userContext.addOperation(cmd);
             }
@@ -279,6 +350,16 @@ public class ChatCommandService {
         
         // Context state
         sb.append("\nContext:\n");
+        for (String line : RequestMetrics.getCounterStats().split("\n")) {
+            if (!line.isEmpty()) {
+                sb.append("  ").append(line).append("\n");
+            }
+        }
+        String requestStats = userContextService.getRequestStats();
+        if (requestStats != null) {
+            sb.append("  this request ").append(requestStats).append("\n");  // Запись — после ответа (pending)
+        }
+        sb.append("  ").append(RequestMetrics.getStats()).append("\n");
         sb.append("  pendingCommands: ").append(userContext.getPendingCommands() != null ? userContext.getPendingCommands().size() : 0).append("\n");
         sb.append("  awaitingClarification: ").append(userContext.isAwaitingClarification()).append("\n");
         sb.append("  historySize: ").append(
@@ -302,12 +383,11 @@ public class ChatCommandService {
         
         // Проверяем положительный ответ
         if (lower.matches("да|yes|ок|окей|ok|okay|конечно|запомни|сохрани|ага|угу|давай|го|1|\\+")) {
-            // Сначала получаем свежий контекст, добавляем инструкцию
-            UserContext freshContext = userContextService.getContext(userContext.getUserId());
-            freshContext.addInstruction(pending);
-            freshContext.setPendingSuggestion(null);
-            freshContext.clearHistory();
-            userContextService.saveContext(freshContext);
+            // Контекст уже загружен в этом запросе — добавляем инструкцию в него же
+            userContext.addInstruction(pending);
+            userContext.setPendingSuggestion(null);
+            userContext.clearHistory();
+            userContextService.saveContext(userContext);
             
             log.info("Learning: saved instruction '{}' for user {}", pending, userContext.getUserId());
             
@@ -611,7 +691,7 @@ public class ChatCommandService {
         // Отправляем команду отмены в SQS
         SheetsRecordDTO undoRecord = SheetsRecordDTO.fromParsedCommand(lastOp, request.getUserName());
         undoRecord.setUndo(true);  // Флаг отмены
-        sqsPublisher.sendToSheetsLambda(undoRecord);
+        sqsPublisher.sendToSheetsLambda(undoRecord, request);
         
         // Сохраняем контекст (без отменённой операции)
         userContextService.saveContext(userContext);
@@ -688,20 +768,20 @@ public class ChatCommandService {
                 .build();
     }
 
-    private void sendToSheetsLambda(UserContext userContext, ParsedCommand parsedCommand) {
+    private void sendToSheetsLambda(ChatRequest request, UserContext userContext, ParsedCommand parsedCommand) {
         // Используем userName из DynamoDB (DIMA, KIKI), а не из Telegram (Dima, Ksenija)
         String userName = userContext.getUserName() != null ? userContext.getUserName() : userContext.getUserId();
         SheetsRecordDTO sheetsRecord = SheetsRecordDTO.fromParsedCommand(
                 parsedCommand,
                 userName
         );
-        sqsPublisher.sendToSheetsLambda(sheetsRecord);
+        sqsPublisher.sendToSheetsLambda(sheetsRecord, request);
     }
     
     /**
      * Отправляет операцию отмены с отрицательной суммой (Event Sourcing style)
      */
-    private void sendCancelOperation(UserContext userContext, ParsedCommand originalOp) {
+    private void sendCancelOperation(ChatRequest request, UserContext userContext, ParsedCommand originalOp) {
         // Создаём копию с отрицательной суммой
         ParsedCommand cancelOp = ParsedCommand.builder()
                 .operationType(originalOp.getOperationType())
@@ -716,7 +796,7 @@ public class ChatCommandService {
                 .understood(true)
                 .build();
         
-        sendToSheetsLambda(userContext, cancelOp);
+        sendToSheetsLambda(request, userContext, cancelOp);
     }
 
     /**
@@ -822,28 +902,50 @@ public class ChatCommandService {
     /**
      * Загружает контексты linked users и добавляет их в основной контекст.
      * Это нужно для того, чтобы AI видел счета/фонды/defaults linked users.
+     * Берутся только профили (счета, фонды, defaults) — одним BatchGetItem; что уже загружено
+     * параллельно (prefetched), повторно не читается.
      */
-    private void loadLinkedUserContexts(UserContext userContext) {
+    private void loadLinkedUserContexts(UserContext userContext,
+                                        CompletableFuture<Map<String, UserContext>> prefetched) {
         List<String> linkedUsers = userContext.getLinkedUsers();
         if (linkedUsers == null || linkedUsers.isEmpty()) {
             return;
         }
         
+        // linkedUserEntry формат: "NAME (userId)" или просто "userId"
+        Set<String> linkedUserIds = new LinkedHashSet<>();
         for (String linkedUserEntry : linkedUsers) {
-            // linkedUserEntry формат: "NAME (userId)" или просто "userId"
             String linkedUserId = extractUserId(linkedUserEntry);
             if (linkedUserId != null && !linkedUserId.equals(userContext.getUserId())) {
-                try {
-                    UserContext linkedContext = userContextService.getContext(linkedUserId);
-                    if (linkedContext != null && linkedContext.getUserId() != null) {
-                        userContext.addLinkedUserContext(linkedUserId, linkedContext);
-                        log.info("Loaded linked user context: {} for user {}", 
-                                linkedContext.getUserName(), userContext.getUserId());
-                    }
-                } catch (Exception e) {
-                    log.warn("Failed to load linked user context for {}: {}", linkedUserId, e.getMessage());
+                linkedUserIds.add(linkedUserId);
+            }
+        }
+        if (linkedUserIds.isEmpty()) {
+            return;
+        }
+
+        try {
+            Map<String, UserContext> profiles = new HashMap<>(prefetched.join());
+            List<String> missing = new ArrayList<>();
+            for (String linkedUserId : linkedUserIds) {
+                if (!profiles.containsKey(linkedUserId)) {
+                    missing.add(linkedUserId);
+                }
+            }
+            if (!missing.isEmpty()) {
+                profiles.putAll(userContextService.getLinkedProfiles(missing));
+            }
+
+            for (String linkedUserId : linkedUserIds) {
+                UserContext linkedContext = profiles.get(linkedUserId);
+                if (linkedContext != null && linkedContext.getUserId() != null) {
+                    userContext.addLinkedUserContext(linkedUserId, linkedContext);
+                    log.info("Loaded linked user context: {} for user {}", 
+                            linkedContext.getUserName(), userContext.getUserId());
                 }
             }
+        } catch (Exception e) {
+            log.warn("Failed to load linked user contexts for {}: {}", userContext.getUserId(), e.getMessage());
         }
     }
     
@@ -0,0 +1,208 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import com.github.dimka9910.sheets.ai.dto.UserContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Отбор релевантной части профиля для промпта у пользователей с большими списками.
+ *
+ * Счета и alias-инструкции ("шаурма = Еда") сравниваются с сообщением по триграммам,
+ * в промпт попадают только лучшие кандидаты + дефолты + то, что использовалось в последней операции.
+ * Если уверенности нет (нет сильного совпадения, идёт уточнение) — раздел остаётся полным.
+ *
+ * Фонды не фильтруются никогда: их называют по смыслу ("еда" → Groceries), триграммы этого не видят,
+ * а обрезанный список выглядел бы для AI полным и вёл бы к уверенно неверному фонду.
+ *
+ * Маленькие списки не фильтруются вообще: экономия копеечная, а риск потерять нужное — нет.
+ */
+@Slf4j
+public class ContextRelevanceSelector {
+
+    private static final int MIN_ACCOUNTS_TO_FILTER = 10;
+    private static final int MIN_INSTRUCTIONS_TO_FILTER = 10;
+    private static final int TOP_K = 3;
+    private static final double MATCH_SCORE = 0.5;
+    private static final double CONFIDENT_SCORE = 0.8;  // Ниже — счёт мог быть назван по смыслу, отдаём всё
+    private static final int CHARS_PER_TOKEN = 4;  // Грубая оценка для статистики
+
+    /**
+     * Что показать в профиле. instructionIndices — исходные индексы (нужны для REMOVE_INSTRUCTION)
+     */
+    public record Selection(List<String> accounts, List<String> funds, List<Integer> instructionIndices,
+                            boolean filtered) {
+
+        public static Selection full(UserContext context) {
+            List<String> instructions = context.getCustomInstructions();
+            int count = instructions != null ? instructions.size() : 0;
+            return new Selection(context.getAccounts(), context.getFunds(),
+                    IntStream.range(0, count).boxed().toList(), false);
+        }
+    }
+
+    public Selection select(UserContext context, String userMessage) {
+        RequestMetrics.count("ContextFilter.Requests");
+        Selection full = Selection.full(context);
+
+        // Уточнение ("на карту", "пополам") — смысл зависит от предыдущих сообщений, не фильтруем
+        boolean continuing = (context.getPendingCommands() != null && !context.getPendingCommands().isEmpty())
+                || (context.getConversationHistory() != null && context.getConversationHistory().size() > 1);
+        if (continuing || userMessage == null || userMessage.isBlank()) {
+            return full;
+        }
+
+        List<String> aliasTargets = new ArrayList<>();
+        List<Integer> instructions = selectInstructions(context, userMessage, aliasTargets);
+        List<String> accounts = selectNames(context.getAccounts(), MIN_ACCOUNTS_TO_FILTER, userMessage,
+                aliasTargets, context.getDefaultAccount(), recentNames(context));
+
+        boolean filtered = instructions.size() < full.instructionIndices().size()
+                || sizeOf(accounts) < sizeOf(full.accounts());
+        if (!filtered) {
+            return full;
+        }
+        return new Selection(accounts, full.funds(), instructions, true);
+    }
+
+    /**
+     * Учесть экономию (размер полного и отфильтрованного профиля в символах)
+     */
+    public static void recordSavings(int fullChars, int selectedChars) {
+        RequestMetrics.count("ContextFilter.Filtered");
+        long tokens = Math.max(0, fullChars - selectedChars) / CHARS_PER_TOKEN;
+        long total = RequestMetrics.count("ContextFilter.SavedTokens", tokens);
+        log.info("Relevance filter: profile {} → {} chars, ~{} tokens saved ({} total)",
+                fullChars, selectedChars, tokens, total);
+    }
+
+    /**
+     * Инструкции: общие правила — всегда; alias "X = Y" — только если X похож на слово сообщения;
+     * инструкции, чей номер упомянут в сообщении ("удали 3") — тоже.
+     * Правые части выбранных alias складываются в aliasTargets.
+     */
+    private List<Integer> selectInstructions(UserContext context, String userMessage, List<String> aliasTargets) {
+        List<String> instructions = context.getCustomInstructions();
+        if (instructions == null || instructions.isEmpty()) {
+            return List.of();
+        }
+
+        List<Integer> aliasIndices = new ArrayList<>();
+        List<String> aliasKeys = new ArrayList<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            String[] parts = instructions.get(i).split("=|→|->", 2);
+            if (parts.length == 2 && !parts[0].isBlank() && !parts[1].isBlank()) {
+                aliasIndices.add(i);
+                aliasKeys.add(parts[0]);
+            }
+        }
+        double[] scores = new TrigramIndex(aliasKeys).score(userMessage);
+        Set<Integer> referencedIndices = numbersIn(userMessage);
+
+        boolean filter = instructions.size() >= MIN_INSTRUCTIONS_TO_FILTER;
+        List<Integer> selected = new ArrayList<>();
+        int alias = 0;
+        for (int i = 0; i < instructions.size(); i++) {
+            boolean isAlias = alias < aliasIndices.size() && aliasIndices.get(alias) == i;
+            boolean matched = isAlias && scores[alias] >= MATCH_SCORE;
+            if (matched) {
+                aliasTargets.add(instructions.get(i).split("=|→|->", 2)[1].trim());
+            }
+            if (!filter || !isAlias || matched || referencedIndices.contains(i)) {
+                selected.add(i);
+            }
+            if (isAlias) {
+                alias++;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Счета: лучшие совпадения с сообщением + цели alias + дефолт + недавние.
+     * Если нет ни сильного совпадения (CONFIDENT_SCORE), ни цели alias — полный список.
+     */
+    private List<String> selectNames(List<String> names, int minToFilter, String userMessage,
+                                     List<String> aliasTargets, String defaultName, List<String> recent) {
+        if (names == null || names.size() < minToFilter) {
+            return names;
+        }
+
+        TrigramIndex index = new TrigramIndex(names);
+        double[] scores = index.score(userMessage);
+        List<Integer> matched = IntStream.range(0, names.size())
+                .filter(i -> scores[i] >= MATCH_SCORE)
+                .boxed()
+                .sorted(Comparator.comparingDouble((Integer i) -> scores[i]).reversed())
+                .limit(TOP_K)
+                .toList();
+
+        Set<String> selected = new LinkedHashSet<>();
+        matched.forEach(i -> selected.add(names.get(i)));
+        boolean aliased = false;
+        for (String name : names) {
+            if (containsIgnoreCase(aliasTargets, name)) {
+                selected.add(name);
+                aliased = true;
+            }
+        }
+        boolean confident = !matched.isEmpty() && scores[matched.get(0)] >= CONFIDENT_SCORE;
+        if (!confident && !aliased) {
+            return names;  // Низкая уверенность — отдаём всё
+        }
+
+        for (String name : names) {
+            if (name.equalsIgnoreCase(defaultName) || containsIgnoreCase(recent, name)) {
+                selected.add(name);
+            }
+        }
+        // Сохраняем исходный порядок
+        return names.stream().filter(selected::contains).toList();
+    }
+
+    /**
+     * Счета последних операций — частые кандидаты для следующей
+     */
+    private List<String> recentNames(UserContext context) {
+        List<String> result = new ArrayList<>();
+        List<ParsedCommand> lastOperations = context.getLastOperations();
+        if (lastOperations != null) {
+            for (ParsedCommand op : lastOperations) {
+                String name = op.getAccountName();
+                if (name != null) {
+                    result.add(name);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Set<Integer> numbersIn(String message) {
+        Set<Integer> numbers = new LinkedHashSet<>();
+        for (String token : message.split("[^0-9]+")) {
+            if (!token.isEmpty() && token.length() <= 4) {
+                numbers.add(Integer.parseInt(token));
+            }
+        }
+        return numbers;
+    }
+
+    private static boolean containsIgnoreCase(List<String> values, String value) {
+        for (String v : values) {
+            if (v.equalsIgnoreCase(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int sizeOf(List<?> list) {
+        return list != null ? list.size() : 0;
+    }
+}
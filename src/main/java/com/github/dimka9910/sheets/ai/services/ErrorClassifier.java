@@ -0,0 +1,40 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Классификация ошибок обработки сообщения:
+ * retryable — временные (таймауты, 429, 5xx, сеть, circuit breaker) → сообщение стоит обработать позже;
+ * terminal — повтор даст тот же результат (битый JSON, 4xx, баги) → повторять бессмысленно.
+ */
+public final class ErrorClassifier {
+
+    private ErrorClassifier() {
+    }
+
+    public static boolean isRetryable(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof JsonProcessingException) {
+                return false;
+            }
+            if (e instanceof LlmException llm) {
+                return llm.isRetryable();
+            }
+            if (e instanceof AwsServiceException aws) {
+                return aws.isThrottlingException() || aws.statusCode() >= 500;
+            }
+            if (e instanceof SdkClientException || e instanceof IOException || e instanceof TimeoutException) {
+                return true;
+            }
+            if (e.getCause() == e) {
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.dimka9910.sheets.ai.config.AppConfig;
+import com.github.dimka9910.sheets.ai.dto.ChatResponse;
+import com.github.dimka9910.sheets.ai.dto.IdempotencyRecord;
+import com.github.dimka9910.sheets.ai.repository.DynamoDbIdempotencyStore;
+import com.github.dimka9910.sheets.ai.repository.IdempotencyStore;
+import com.github.dimka9910.sheets.ai.repository.InMemoryIdempotencyStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Защита от повторной доставки SQS (at-least-once): повтор уже обработанного сообщения
+ * не вызывает OpenAI, не пишет в Sheets повторно и не шлёт второй ответ.
+ *
+ * Ключ — ChatRequest.requestId (SQS messageId, одинаковый при повторах).
+ * begin() занимает ключ (IN_PROGRESS с lock до конца invocation), complete() сохраняет ChatResponse,
+ * markReplied() — что ответ ушёл в Telegram. Если ответ не ушёл, повтор отправит сохранённый.
+ *
+ * Уровни: LRU завершённых в памяти контейнера → IdempotencyStore (DynamoDB или in-memory).
+ */
+@Slf4j
+public class IdempotencyService {
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final Duration TTL = Duration.ofHours(24);  // С запасом больше окна повторов SQS
+
+    public enum State { ACQUIRED, IN_PROGRESS, COMPLETED }
+
+    /**
+     * Результат begin(). response/replied — только для COMPLETED
+     */
+    public record Claim(State state, ChatResponse response, boolean replied) {
+    }
+
+    private final Map<String, Completed> completed = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Completed> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Занятые этим контейнером ключи → lockedUntil (release снимает только свой lock)
+    private final Map<String, Long> claims = new ConcurrentHashMap<>();
+
+    private final IdempotencyStore store;
+    private final ObjectMapper objectMapper;
+
+    public IdempotencyService() {
+        this(createStore());
+    }
+
+    // Конструктор для тестирования
+    public IdempotencyService(IdempotencyStore store) {
+        this.store = store;
+        this.objectMapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    private static IdempotencyStore createStore() {
+        String tableName = AppConfig.getIdempotencyTableName();
+        if (tableName == null) {
+            log.info("IDEMPOTENCY_TABLE_NAME is not set - duplicates are detected within a container only");
+            return new InMemoryIdempotencyStore();
+        }
+        return new DynamoDbIdempotencyStore(tableName);
+    }
+
+    /**
+     * Занять ключ перед обработкой. lockMillis — сколько обработка может длиться
+     * (после этого повтор считает обработчик упавшим). Без ключа — всегда ACQUIRED
+     */
+    public Claim begin(String key, long lockMillis) {
+        if (key == null) {
+            return new Claim(State.ACQUIRED, null, false);
+        }
+
+        Completed cached;
+        synchronized (completed) {
+            cached = completed.get(key);
+        }
+        if (cached != null) {
+            RequestMetrics.count("Idempotency.Duplicates");
+            return new Claim(State.COMPLETED, cached.response(), cached.replied());
+        }
+
+        long lockedUntil = System.currentTimeMillis() + lockMillis;
+        if (store.tryAcquire(key, lockedUntil, expiresAt())) {
+            claims.put(key, lockedUntil);
+            return new Claim(State.ACQUIRED, null, false);
+        }
+
+        Optional<IdempotencyRecord> record = store.get(key);
+        if (record.isPresent() && IdempotencyRecord.COMPLETED.equals(record.get().getStatus())) {
+            RequestMetrics.count("Idempotency.Duplicates");
+            ChatResponse response = readResponse(record.get().getResponse());
+            boolean replied = Boolean.TRUE.equals(record.get().getReplied());
+            remember(key, new Completed(response, replied));
+            return new Claim(State.COMPLETED, response, replied);
+        }
+        RequestMetrics.count("Idempotency.InProgress");
+        return new Claim(State.IN_PROGRESS, null, false);
+    }
+
+    /**
+     * Сохранить результат обработки (до отправки ответа пользователю)
+     */
+    public void complete(String key, ChatResponse response) {
+        save(key, response, false);
+    }
+
+    /**
+     * Ответ отправлен пользователю — повтору больше нечего делать
+     */
+    public void markReplied(String key, ChatResponse response) {
+        save(key, response, true);
+    }
+
+    /**
+     * Обработка не удалась — снять lock, чтобы повтор обработал сообщение заново.
+     * Если результат уже сохранён (упала только отправка ответа) — не снимаем: повтор дошлёт ответ
+     */
+    public void release(String key) {
+        if (key == null) {
+            return;
+        }
+        Long lockedUntil = claims.remove(key);
+        synchronized (completed) {
+            if (completed.containsKey(key)) {
+                return;
+            }
+        }
+        if (lockedUntil != null) {
+            store.release(key, lockedUntil);
+        }
+    }
+
+    private void save(String key, ChatResponse response, boolean replied) {
+        if (key == null) {
+            return;
+        }
+        claims.remove(key);
+        remember(key, new Completed(response, replied));
+        try {
+            store.complete(key, objectMapper.writeValueAsString(response), replied, expiresAt());
+        } catch (Exception e) {
+            log.warn("Failed to save idempotency record {}: {}", key, e.getMessage());
+        }
+    }
+
+    private void remember(String key, Completed entry) {
+        synchronized (completed) {
+            completed.put(key, entry);
+        }
+    }
+
+    private ChatResponse readResponse(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(json, ChatResponse.class);
+        } catch (Exception e) {
+            log.warn("Failed to read stored response: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static long expiresAt() {
+        return (System.currentTimeMillis() + TTL.toMillis()) / 1000;
+    }
+
+    private record Completed(ChatResponse response, boolean replied) {
+    }
+}
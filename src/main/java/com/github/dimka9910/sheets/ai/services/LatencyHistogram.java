@@ -0,0 +1,69 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма латентностей с логарифмическими бакетами (как HdrHistogram, но без зависимости):
+ * до 16 мс — по миллисекунде, дальше 8 линейных бакетов на каждую степень двойки.
+ * Погрешность перцентиля — не больше 12.5%, память фиксированная, запись без блокировок.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_LIMIT = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 30;  // ~18 минут — больше в Lambda не бывает
+
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - 4 + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long millis) {
+        counts.incrementAndGet(bucketOf(Math.max(0, millis)));
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Перцентиль (0..100) в миллисекундах — нижняя граница бакета; 0 если данных нет
+     */
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return lowerBoundOf(i);
+            }
+        }
+        return lowerBoundOf(BUCKET_COUNT - 1);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+        int sub = (int) ((value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        return (1L << exponent) + ((long) sub << (exponent - SUB_BUCKET_BITS));
+    }
+}
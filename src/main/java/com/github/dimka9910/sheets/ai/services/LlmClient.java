@@ -0,0 +1,253 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.dimka9910.sheets.ai.config.AppConfig;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Общий клиент OpenAI-совместимого chat completions API.
+ *
+ * Один HttpClient (HTTP/2, keep-alive пул соединений) на весь контейнер — AICommandParser
+ * и OnboardingService используют один и тот же экземпляр, поэтому в warm Lambda
+ * TLS handshake делается один раз, а не на каждый сервис/запрос.
+ *
+ * Base URL настраивается (OPENAI_BASE_URL) — можно подменить на локальный stub.
+ *
+ * Все вызовы идут через LlmResilience (ретраи в пределах дедлайна, circuit breaker).
+ * Опционально (LLM_HEDGE_ENABLED) обычный вызов дублируется, если первый не ответил за p95.
+ */
+@Slf4j
+public class LlmClient {
+
+    private static final String DEFAULT_BASE_URL = "https://api.openai.com/v1";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    private static volatile LlmClient shared;
+
+    // Закрывает тела streaming ответов, не уложившиеся в таймаут
+    private static final ScheduledExecutorService bodyWatchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "llm-stream-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String chatCompletionsUrl;
+    private final String apiKey;
+    private final HttpClient httpClient;
+    private final ObjectWriter requestWriter;
+    private final ObjectReader responseReader;
+    private final LlmResilience resilience = new LlmResilience();
+    private final boolean hedgeEnabled;
+
+    public LlmClient(String baseUrl, String apiKey) {
+        String url = baseUrl != null ? baseUrl : DEFAULT_BASE_URL;
+        this.chatCompletionsUrl = (url.endsWith("/") ? url.substring(0, url.length() - 1) : url) + "/chat/completions";
+        this.apiKey = apiKey;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+        ObjectMapper objectMapper = new ObjectMapper();
+        this.requestWriter = objectMapper.writer();
+        this.responseReader = objectMapper.readerFor(JsonNode.class);
+        this.hedgeEnabled = AppConfig.isLlmHedgeEnabled();
+    }
+
+    /**
+     * Общий экземпляр на контейнер (ключ и base URL из AppConfig)
+     */
+    public static LlmClient getShared() {
+        LlmClient client = shared;
+        if (client == null) {
+            synchronized (LlmClient.class) {
+                client = shared;
+                if (client == null) {
+                    client = new LlmClient(AppConfig.getOpenAiBaseUrl(), AppConfig.getOpenAiApiKey());
+                    log.info("Initialized shared LLM client: {}", client.chatCompletionsUrl);
+                    shared = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Обычный (не streaming) вызов. timeout — верхняя граница одной попытки.
+     * Возвращает JSON ответа целиком; ошибки → LlmException.
+     */
+    public JsonNode complete(Map<String, Object> requestBody, Duration timeout) throws IOException, InterruptedException {
+        return resilience.execute(timeout, attemptTimeout -> {
+            HttpResponse<String> response = send(buildRequest(requestBody, attemptTimeout), attemptTimeout);
+
+            if (response.statusCode() != 200) {
+                log.error("OpenAI API error: {} - {}", response.statusCode(), response.body());
+                throw LlmException.fromStatus(response.statusCode());
+            }
+
+            return responseReader.readValue(response.body());
+        });
+    }
+
+    /**
+     * Streaming вызов (server-sent events): каждый chunk "data: {...}" отдаётся в onChunk
+     * по мере прихода, до "data: [DONE]". requestBody должен содержать "stream": true.
+     * Повтор возможен, только пока не пришёл ни один chunk — иначе onChunk получил бы дубли.
+     *
+     * HttpRequest.timeout ограничивает только ожидание заголовков, поэтому тело читается
+     * под watchdog: по истечении таймаута попытки (не дольше RequestDeadline) поток ответа закрывается.
+     */
+    public void stream(Map<String, Object> requestBody, Duration timeout, Consumer<JsonNode> onChunk)
+            throws IOException, InterruptedException {
+        boolean[] received = {false};
+        resilience.execute(timeout, attemptTimeout -> {
+            long deadlineAt = System.currentTimeMillis() + attemptTimeout.toMillis();
+            HttpResponse<InputStream> response = httpClient.send(buildRequest(requestBody, attemptTimeout),
+                    HttpResponse.BodyHandlers.ofInputStream());
+
+            AtomicBoolean timedOut = new AtomicBoolean();
+            try (InputStream body = response.body()) {
+                // Закрываем сам InputStream: BufferedReader.close() ждал бы зависший readLine()
+                ScheduledFuture<?> watchdog = bodyWatchdog.schedule(() -> {
+                    timedOut.set(true);
+                    closeQuietly(body);
+                }, Math.max(0, deadlineAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                try {
+                    readEvents(response.statusCode(), body, received, onChunk);
+                } finally {
+                    watchdog.cancel(false);
+                }
+                if (timedOut.get()) {
+                    throw new HttpTimeoutException("stream timed out");
+                }
+            } catch (IOException | UncheckedIOException e) {
+                IOException cause = timedOut.get() ? new HttpTimeoutException("stream timed out")
+                        : e instanceof UncheckedIOException u ? u.getCause() : (IOException) e;
+                if (received[0]) {
+                    throw new LlmException("OpenAI stream interrupted: " + cause.getMessage(), 0, false, cause);
+                }
+                throw cause;
+            }
+            return null;
+        });
+    }
+
+    private void readEvents(int statusCode, InputStream body, boolean[] received, Consumer<JsonNode> onChunk)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        if (statusCode != 200) {
+            String error = String.join("\n", reader.lines().toList());
+            log.error("OpenAI API error: {} - {}", statusCode, error);
+            throw LlmException.fromStatus(statusCode);
+        }
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("data:")) {
+                continue; // пустые строки-разделители и комментарии SSE
+            }
+            String data = line.substring(5).trim();
+            if ("[DONE]".equals(data)) {
+                break;
+            }
+            received[0] = true;
+            onChunk.accept(responseReader.readValue(data));
+        }
+    }
+
+    private static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            log.debug("Failed to close timed out OpenAI stream: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Отправка запроса. С hedging: если ответа нет дольше p95 — параллельно шлём второй такой же
+     * и берём первый успешный. Дублирует стоимость только для медленного хвоста.
+     */
+    private HttpResponse<String> send(HttpRequest request, Duration timeout) throws IOException, InterruptedException {
+        long hedgeDelay = hedgeEnabled ? resilience.hedgeDelayMillis() : -1;
+        if (hedgeDelay < 0 || hedgeDelay >= timeout.toMillis()) {
+            return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        }
+
+        CompletableFuture<HttpResponse<String>> primary = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        CompletableFuture<HttpResponse<String>> backup = null;
+        try {
+            try {
+                return primary.get(hedgeDelay, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                log.info("OpenAI call slower than p95 ({} ms), sending hedged request", hedgeDelay);
+                resilience.recordHedge();
+                backup = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            }
+            return firstSuccessful(primary, backup).get(timeout.toMillis() - hedgeDelay, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new HttpTimeoutException("request timed out");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            primary.cancel(true);
+            if (backup != null) {
+                backup.cancel(true);
+            }
+        }
+    }
+
+    private static <T> CompletableFuture<T> firstSuccessful(CompletableFuture<T> first, CompletableFuture<T> second) {
+        CompletableFuture<T> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<T> future : List.of(first, second)) {
+            future.whenComplete((result, error) -> {
+                if (error == null) {
+                    winner.complete(result);
+                } else if (failures.incrementAndGet() == 2) {
+                    winner.completeExceptionally(error);
+                }
+            });
+        }
+        return winner;
+    }
+
+    private HttpRequest buildRequest(Map<String, Object> requestBody, Duration timeout) throws IOException {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(chatCompletionsUrl))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + apiKey)
+                .timeout(timeout)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(requestWriter.writeValueAsBytes(requestBody)))
+                .build();
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.dimka9910.sheets.ai.services;
+
+/**
+ * Ошибка вызова LLM API.
+ * retryable = временная проблема (429, 5xx, таймаут, обрыв соединения, открытый circuit breaker) — можно повторить.
+ * Единственный источник правды: ErrorClassifier берёт retryable отсюда.
+ */
+public class LlmException extends RuntimeException {
+
+    private final int statusCode;      // HTTP статус, 0 если ответа не было
+    private final boolean retryable;
+
+    public LlmException(String message, int statusCode, boolean retryable) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryable = retryable;
+    }
+
+    public LlmException(String message, int statusCode, boolean retryable, Throwable cause) {
+        super(message, cause);
+        this.statusCode = statusCode;
+        this.retryable = retryable;
+    }
+
+    /**
+     * Ошибка по HTTP статусу ответа
+     */
+    public static LlmException fromStatus(int statusCode) {
+        boolean retryable = statusCode == 408 || statusCode == 409 || statusCode == 429 || statusCode >= 500;
+        return new LlmException("OpenAI API error: " + statusCode, statusCode, retryable);
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Устойчивость вызовов LLM API:
+ * 1. Ретраи временных ошибок (429, 5xx, таймауты) с jittered backoff — в пределах RequestDeadline
+ * 2. Circuit breaker: после серии сбоев подряд быстро отказываем, не дожидаясь таймаутов;
+ *    после паузы пропускается один пробный запрос, остальные отклоняются до его результата
+ * 3. Окно последних латентностей — p95 для задержки hedged запроса (см. LlmClient)
+ *
+ * Состояние общее на контейнер.
+ */
+@Slf4j
+public class LlmResilience {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BASE_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 2000;
+    private static final long MIN_ATTEMPT_MS = 1500;         // Меньше не стоит и пытаться
+
+    private static final int FAILURE_THRESHOLD = 5;          // Сбоев подряд до открытия
+    private static final long OPEN_DURATION_MS = 30_000;
+
+    private static final int LATENCY_WINDOW = 100;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    /**
+     * Один вызов API с заданным таймаутом
+     */
+    @FunctionalInterface
+    public interface LlmCall<T> {
+        T call(Duration timeout) throws IOException, InterruptedException;
+    }
+
+    private enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    private static CircuitState circuitState = CircuitState.CLOSED;
+    private static int consecutiveFailures;
+    private static long openedAt;
+    private static boolean trialInFlight;
+
+    private static final long[] latencies = new long[LATENCY_WINDOW];
+    private static int latencyCount;
+    private static int latencyIndex;
+
+    static {
+        RequestMetrics.gauge("Llm.Circuit", () -> {
+            synchronized (LlmResilience.class) {
+                return circuitState;
+            }
+        });
+    }
+
+    /**
+     * Выполняет вызов с ретраями. timeout — верхняя граница одной попытки,
+     * реально используется min(timeout, остаток RequestDeadline).
+     */
+    public <T> T execute(Duration timeout, LlmCall<T> call) throws IOException, InterruptedException {
+        LlmException lastError = null;
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            long remaining = RequestDeadline.remainingMillis();
+            if (remaining < MIN_ATTEMPT_MS) {
+                throw lastError != null ? lastError
+                        : new LlmException("Request deadline exceeded before OpenAI call", 0, true);
+            }
+            Duration attemptTimeout = Duration.ofMillis(Math.min(timeout.toMillis(), remaining));
+
+            boolean trial = acquirePermission();
+            long startedAt = System.currentTimeMillis();
+            try {
+                try {
+                    T result = call.call(attemptTimeout);
+                    onSuccess(System.currentTimeMillis() - startedAt);
+                    return result;
+                } catch (LlmException e) {
+                    lastError = e;
+                } catch (IOException e) {
+                    // Таймаут, обрыв соединения — временная проблема
+                    lastError = new LlmException("OpenAI call failed: " + e.getMessage(), 0, true, e);
+                }
+
+                if (!lastError.isRetryable()) {
+                    throw lastError;
+                }
+                onFailure();
+            } finally {
+                if (trial) {
+                    endTrial();
+                }
+            }
+
+            long backoff = backoffMillis(attempt);
+            if (attempt == MAX_ATTEMPTS || RequestDeadline.remainingMillis() - backoff < MIN_ATTEMPT_MS) {
+                break;
+            }
+            RequestMetrics.count("Llm.Retries");
+            log.warn("OpenAI attempt {} failed ({}), retrying in {} ms", attempt, lastError.getMessage(), backoff);
+            Thread.sleep(backoff);
+        }
+
+        throw lastError;
+    }
+
+    /**
+     * Задержка перед hedged запросом: p95 латентности последних вызовов.
+     * -1 — статистики пока мало, hedging не делаем.
+     */
+    public long hedgeDelayMillis() {
+        long[] snapshot;
+        synchronized (latencies) {
+            if (latencyCount < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            snapshot = Arrays.copyOf(latencies, latencyCount);
+        }
+        Arrays.sort(snapshot);
+        return snapshot[(int) Math.ceil(snapshot.length * 0.95) - 1];
+    }
+
+    public void recordHedge() {
+        RequestMetrics.count("Llm.Hedges");
+    }
+
+    /**
+     * Пропустить вызов или отказать сразу. true — это единственный пробный вызов half-open circuit.
+     * Отказ — retryable: ретраев внутри execute() не будет (исключение летит мимо цикла),
+     * а сообщение SQS стоит обработать позже
+     */
+    private static synchronized boolean acquirePermission() {
+        if (circuitState == CircuitState.OPEN) {
+            if (System.currentTimeMillis() - openedAt < OPEN_DURATION_MS) {
+                RequestMetrics.count("Llm.ShortCircuited");
+                throw new LlmException("OpenAI circuit breaker is open", 0, true);
+            }
+            // Пробный запрос: следующий успех закроет circuit, сбой — снова откроет
+            circuitState = CircuitState.HALF_OPEN;
+            log.info("OpenAI circuit breaker half-open, trying a request");
+        }
+        if (circuitState == CircuitState.HALF_OPEN) {
+            // Пока идёт пробный запрос, остальные не нагружают возможно ещё лежащий endpoint
+            if (trialInFlight) {
+                RequestMetrics.count("Llm.ShortCircuited");
+                throw new LlmException("OpenAI circuit breaker is half-open, trial request in flight", 0, true);
+            }
+            trialInFlight = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Пробный вызов завершён. Если он не изменил состояние (не временная ошибка) —
+     * пробным станет следующий вызов
+     */
+    private static synchronized void endTrial() {
+        trialInFlight = false;
+    }
+
+    private static void onSuccess(long latencyMillis) {
+        synchronized (LlmResilience.class) {
+            if (circuitState != CircuitState.CLOSED) {
+                log.info("OpenAI circuit breaker closed");
+            }
+            circuitState = CircuitState.CLOSED;
+            consecutiveFailures = 0;
+        }
+        synchronized (latencies) {
+            latencies[latencyIndex] = latencyMillis;
+            latencyIndex = (latencyIndex + 1) % LATENCY_WINDOW;
+            latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+        }
+    }
+
+    private static synchronized void onFailure() {
+        consecutiveFailures++;
+        if (circuitState == CircuitState.HALF_OPEN
+                || (circuitState == CircuitState.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+            circuitState = CircuitState.OPEN;
+            openedAt = System.currentTimeMillis();
+            log.warn("OpenAI circuit breaker opened after {} consecutive failures", consecutiveFailures);
+        }
+    }
+
+    /**
+     * Full jitter: случайно в [0, min(max, base * 2^attempt)]
+     */
+    private static long backoffMillis(int attempt) {
+        long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << attempt);
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+}
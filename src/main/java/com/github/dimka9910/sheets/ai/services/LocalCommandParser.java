@@ -0,0 +1,464 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.github.dimka9910.sheets.ai.dto.OperationTypeEnum;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommandList;
+import com.github.dimka9910.sheets.ai.dto.UserContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Локальный детерминированный парсер для простых однострочных трат: "кофе 300", "такси 500 карта".
+ * Работает ДО вызова AI и экономит полный round trip в OpenAI.
+ *
+ * ВАЖНО: это не замена AI, а fast-path. Парсер отвечает только когда уверен
+ * (сумма, валюта, счёт и фонд однозначно выводятся из UserContext). Во всех
+ * остальных случаях возвращает null — и сообщение уходит в AI как раньше.
+ */
+@Slf4j
+public class LocalCommandParser {
+
+    private static final int MAX_MESSAGE_LENGTH = 60;
+    private static final int MAX_DESCRIPTION_WORDS = 3;
+    private static final int MAX_TRAILING_TOKENS = 2;
+
+    // Однозначные названия валют (неоднозначные — доллары, динары, рубли — решает AI)
+    private static final Map<String, String> CURRENCY_WORDS = Map.ofEntries(
+            Map.entry("€", "EUR"),
+            Map.entry("евро", "EUR"),
+            Map.entry("euro", "EUR"),
+            Map.entry("euros", "EUR"),
+            Map.entry("eur", "EUR"),
+            Map.entry("йен", "JPY"),
+            Map.entry("иен", "JPY"),
+            Map.entry("yen", "JPY"),
+            Map.entry("jpy", "JPY")
+    );
+
+    // Общие слова для счетов → сегмент имени счёта (как нормализует онбординг: "карта" → CARD)
+    private static final Map<String, String> ACCOUNT_WORDS = Map.ofEntries(
+            Map.entry("карта", "CARD"),
+            Map.entry("картой", "CARD"),
+            Map.entry("карточкой", "CARD"),
+            Map.entry("card", "CARD"),
+            Map.entry("наличка", "CASH"),
+            Map.entry("наличкой", "CASH"),
+            Map.entry("наличные", "CASH"),
+            Map.entry("наличными", "CASH"),
+            Map.entry("нал", "CASH"),
+            Map.entry("кэш", "CASH"),
+            Map.entry("кэшем", "CASH"),
+            Map.entry("cash", "CASH")
+    );
+
+    // Слова, при которых сообщение уже не "простая трата" — доход, перевод, коррекция,
+    // мета-команда, несколько операций или участие linked user. Сравнение по префиксу.
+    private static final List<String> NOT_SIMPLE_EXPENSE_PREFIXES = List.of(
+            "получ", "зарплат", "зп", "доход", "income", "salary", "earn", "got",
+            "перев", "перек", "transfer", "снял", "сним", "снять", "withdr",
+            "верн", "return", "refund", "долг", "занял", "одолж", "кредит", "credit", "loan", "debt",
+            "отмен", "cancel", "undo", "исправ", "поменя", "fix", "correct",
+            "запомн", "remember", "добав", "add", "покаж", "show", "help", "помо", "настро", "setting",
+            "дефолт", "default", "умолч", "пополам", "половин", "поровну", "split"
+    );
+
+    private static final Set<String> NOT_SIMPLE_EXPENSE_WORDS = Set.of(
+            "не", "no", "not", "и", "and", "плюс", "plus", "с", "со", "from", "за", "for",
+            "ей", "ему", "ней", "неё", "нее", "него", "ним", "ими", "им", "him", "her", "them",
+            "себе", "мне", "меня", "me", "my", "мой", "моя", "моё", "мое"
+    );
+
+    private static final Map<Character, String> TRANSLIT = buildTranslit();
+
+    /**
+     * Пытается распарсить сообщение локально.
+     *
+     * @return готовый ParsedCommandList или null, если сообщение неоднозначное и нужен AI
+     */
+    public ParsedCommandList tryParse(String message, UserContext context) {
+        RequestMetrics.count("FastPath.Attempts");
+        ParsedCommand command = parseSimpleExpense(message, context);
+        if (command == null) {
+            return null;
+        }
+
+        long hitCount = RequestMetrics.count("FastPath.Hits");
+        long saved = RequestMetrics.count("FastPath.SavedMs", AICommandParser.getAverageLatencyMillis());
+        log.info("Fast-path hit: {} (hits={}/{}, ~{} ms LLM latency saved in this container)",
+                command, hitCount, RequestMetrics.counter("FastPath.Attempts"), saved);
+
+        return ParsedCommandList.builder()
+                .commands(new ArrayList<>(List.of(command)))
+                .understood(true)
+                .tokenUsage("⚡ local fast-path (no LLM call)")
+                .build();
+    }
+
+    private ParsedCommand parseSimpleExpense(String message, UserContext context) {
+        if (message == null || message.isBlank() || message.length() > MAX_MESSAGE_LENGTH) {
+            return null;
+        }
+        if (message.startsWith("/") || message.indexOf('\n') >= 0 || message.indexOf(',') >= 0
+                || message.indexOf(';') >= 0 || message.indexOf('?') >= 0) {
+            return null;
+        }
+
+        Map<String, String> aliases = parseAliases(context);
+        if (aliases == null) {
+            return null; // Есть инструкции, которые мы не умеем применять локально
+        }
+
+        String[] tokens = message.trim().split("\\s+");
+        int amountIndex = -1;
+        Double amount = null;
+        String currency = null;
+
+        for (int i = 0; i < tokens.length; i++) {
+            if (containsDigit(tokens[i])) {
+                if (amountIndex >= 0) {
+                    return null; // Несколько чисел — пусть разбирается AI
+                }
+                amountIndex = i;
+                String token = tokens[i];
+                if (token.startsWith("€") || token.endsWith("€")) {
+                    currency = "EUR";
+                    token = token.replace("€", "");
+                }
+                amount = parseAmount(token);
+                if (amount == null) {
+                    return null;
+                }
+            }
+        }
+        // Формат: 1..3 слова описания, сумма, затем максимум валюта и счёт
+        if (amountIndex <= 0 || amountIndex > MAX_DESCRIPTION_WORDS
+                || tokens.length - amountIndex - 1 > MAX_TRAILING_TOKENS) {
+            return null;
+        }
+
+        // После суммы допускаются только валюта и/или счёт
+        String account = null;
+        for (int i = amountIndex + 1; i < tokens.length; i++) {
+            String word = normalizeWord(tokens[i]);
+            String tokenCurrency = resolveCurrency(tokens[i], word, aliases);
+            if (tokenCurrency != null && currency == null) {
+                currency = tokenCurrency;
+                continue;
+            }
+            String tokenAccount = resolveAccount(word, aliases, context);
+            if (tokenAccount != null && account == null) {
+                account = tokenAccount;
+                continue;
+            }
+            return null;
+        }
+
+        // Описание — слова перед суммой
+        List<String> descriptionWords = new ArrayList<>();
+        String fund = null;
+        for (int i = 0; i < amountIndex; i++) {
+            String word = normalizeWord(tokens[i]);
+            if (word.isEmpty() || !isPlainWord(word) || isNotSimpleExpenseWord(word)) {
+                return null;
+            }
+            if (mentionsLinkedUser(word, context) || resemblesAny(word, context.getAccounts())) {
+                return null; // Возможно упоминание счёта или партнёра — нужен AI
+            }
+            String aliased = aliases.get(word);
+            if (aliased != null) {
+                if (!containsIgnoreCase(context.getFunds(), aliased) || fund != null) {
+                    return null;
+                }
+                fund = canonical(context.getFunds(), aliased);
+            } else if (resemblesAny(word, context.getFunds())) {
+                String matched = singleExactFund(word, context.getFunds());
+                if (matched == null || fund != null) {
+                    return null;
+                }
+                fund = matched;
+            }
+            descriptionWords.add(tokens[i]);
+        }
+
+        String comment = String.join(" ", descriptionWords);
+
+        // Как AI по промпту: фонд не наследуется от прошлых операций — дефолтный, иначе единственный
+        if (fund == null) {
+            fund = context.getDefaultFund();
+        }
+        if (fund == null && context.getFunds() != null && context.getFunds().size() == 1) {
+            fund = context.getFunds().get(0);
+        }
+        if (currency == null) {
+            currency = context.getDefaultCurrency();
+        }
+        if (account == null) {
+            account = context.getDefaultAccount();
+        }
+
+        if (fund == null || currency == null || account == null) {
+            return null;
+        }
+
+        return ParsedCommand.builder()
+                .operationType(OperationTypeEnum.EXPENSES)
+                .amount(amount)
+                .currency(currency)
+                .accountName(account)
+                .fundName(fund)
+                .comment(comment)
+                .understood(true)
+                .build();
+    }
+
+    /**
+     * Разбирает custom instructions вида "X = Y" / "X → Y".
+     * Если есть инструкция другого вида ("умножай траты на 2") — вернёт null:
+     * применять произвольные правила умеет только AI.
+     */
+    private Map<String, String> parseAliases(UserContext context) {
+        Map<String, String> aliases = new HashMap<>();
+        List<String> instructions = context.getCustomInstructions();
+        if (instructions == null) {
+            return aliases;
+        }
+        for (String instruction : instructions) {
+            String[] parts = instruction.split("=|→|->", 2);
+            if (parts.length != 2) {
+                return null;
+            }
+            String key = normalizeWord(parts[0].trim());
+            String value = parts[1].trim();
+            if (key.isEmpty() || key.contains(" ") || value.isEmpty() || value.contains(" ")) {
+                return null;
+            }
+            aliases.put(key, value);
+        }
+        return aliases;
+    }
+
+    private String resolveCurrency(String rawToken, String word, Map<String, String> aliases) {
+        String known = CURRENCY_WORDS.get(word);
+        if (known != null) {
+            return known;
+        }
+        String aliased = aliases.get(word);
+        if (aliased != null && isIsoCurrency(aliased.toUpperCase(Locale.ROOT))) {
+            return aliased.toUpperCase(Locale.ROOT);
+        }
+        // ISO код принимаем только если пользователь написал его заглавными: "USD", а не "all"/"try"
+        if (rawToken.length() == 3 && rawToken.equals(rawToken.toUpperCase(Locale.ROOT)) && isIsoCurrency(rawToken)) {
+            return rawToken;
+        }
+        return null;
+    }
+
+    private String resolveAccount(String word, Map<String, String> aliases, UserContext context) {
+        List<String> accounts = context.getAccounts();
+        if (accounts == null || accounts.isEmpty()) {
+            return null;
+        }
+        String aliased = aliases.get(word);
+        if (aliased != null) {
+            return containsIgnoreCase(accounts, aliased) ? canonical(accounts, aliased) : null;
+        }
+        if (containsIgnoreCase(accounts, word)) {
+            return canonical(accounts, word);
+        }
+        String segment = ACCOUNT_WORDS.get(word);
+        if (segment == null) {
+            return null;
+        }
+        List<String> candidates = new ArrayList<>();
+        for (String account : accounts) {
+            if (hasSegment(account, segment)) {
+                candidates.add(account);
+            }
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        // Несколько карт — берём дефолтный счёт, если он подходит (как и AI по промпту)
+        String defaultAccount = context.getDefaultAccount();
+        if (defaultAccount != null && candidates.contains(defaultAccount)) {
+            return defaultAccount;
+        }
+        return null;
+    }
+
+    private boolean mentionsLinkedUser(String word, UserContext context) {
+        List<String> linkedUsers = context.getLinkedUsers();
+        if (linkedUsers == null || linkedUsers.isEmpty()) {
+            return false;
+        }
+        List<String> names = new ArrayList<>(linkedUsers);
+        if (context.getLinkedUserContexts() != null) {
+            for (UserContext linked : context.getLinkedUserContexts().values()) {
+                if (linked.getUserName() != null) {
+                    names.add(linked.getUserName());
+                }
+            }
+        }
+        return resemblesAny(word, names);
+    }
+
+    /**
+     * Похоже ли слово (с транслитерацией) на один из сегментов имён: "райф" ~ CARD_RAIF
+     */
+    private boolean resemblesAny(String word, List<String> names) {
+        if (names == null || names.isEmpty()) {
+            return false;
+        }
+        String latin = transliterate(word);
+        if (latin.length() < 3) {
+            return false;
+        }
+        for (String name : names) {
+            for (String segment : name.toLowerCase(Locale.ROOT).split("[_\\s()\\-]+")) {
+                if (segment.length() >= 3 && (segment.startsWith(latin) || latin.startsWith(segment))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String singleExactFund(String word, List<String> funds) {
+        String latin = transliterate(word);
+        String match = null;
+        for (String fund : funds) {
+            if (fund.equalsIgnoreCase(word) || fund.equalsIgnoreCase(latin)) {
+                if (match != null) {
+                    return null;
+                }
+                match = fund;
+            }
+        }
+        return match;
+    }
+
+    private boolean isNotSimpleExpenseWord(String word) {
+        if (NOT_SIMPLE_EXPENSE_WORDS.contains(word)) {
+            return true;
+        }
+        for (String prefix : NOT_SIMPLE_EXPENSE_PREFIXES) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Double parseAmount(String token) {
+        if (token.isEmpty()) {
+            return null;
+        }
+        int separators = 0;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c == '.' || c == ',') {
+                separators++;
+            } else if (!Character.isDigit(c)) {
+                return null; // "5к", "300р", "$5" — пусть решает AI
+            }
+        }
+        if (separators > 1) {
+            return null;
+        }
+        try {
+            double value = Double.parseDouble(token.replace(',', '.'));
+            return value > 0 ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isIsoCurrency(String code) {
+        try {
+            java.util.Currency.getInstance(code);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasSegment(String name, String segment) {
+        for (String part : name.toUpperCase(Locale.ROOT).split("_")) {
+            if (part.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsIgnoreCase(List<String> values, String value) {
+        return canonical(values, value) != null;
+    }
+
+    private static String canonical(List<String> values, String value) {
+        if (values == null || value == null) {
+            return null;
+        }
+        for (String candidate : values) {
+            if (candidate.equalsIgnoreCase(value)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean containsDigit(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (Character.isDigit(token.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPlainWord(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (!Character.isLetter(c) && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String normalizeWord(String token) {
+        String word = token.toLowerCase(Locale.ROOT).replace('ё', 'е');
+        int end = word.length();
+        while (end > 0 && ".!:".indexOf(word.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return word.substring(0, end);
+    }
+
+    static String transliterate(String word) {
+        StringBuilder sb = new StringBuilder(word.length() + 4);
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            String latin = TRANSLIT.get(c);
+            sb.append(latin != null ? latin : String.valueOf(c));
+        }
+        return sb.toString();
+    }
+
+    private static Map<Character, String> buildTranslit() {
+        String cyrillic = "абвгдеёжзийклмнопрстуфхцчшщъыьэюя";
+        String[] latin = {"a", "b", "v", "g", "d", "e", "e", "zh", "z", "i", "i", "k", "l", "m", "n", "o", "p",
+                "r", "s", "t", "u", "f", "h", "ts", "ch", "sh", "sch", "", "y", "", "e", "yu", "ya"};
+        Map<Character, String> map = new HashMap<>();
+        for (int i = 0; i < cyrillic.length(); i++) {
+            map.put(cyrillic.charAt(i), latin[i]);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.github.dimka9910.sheets.ai.dto.ChatRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Склейка быстрых серий сообщений одного пользователя ("кофе 300", "и круассан 250", "картой")
+ * в один запрос: один промпт, одно чтение/запись контекста, один ответ — и никакой гонки
+ * между сообщениями за UserContext.
+ *
+ * Склеиваются только соседние сообщения одного чата с интервалом до COALESCE_WINDOW_MS.
+ * Admin команды (/...) всегда идут отдельно. Если бот ждёт ответа (да/нет на предложение,
+ * уточнение, онбординг) — первое сообщение и есть ответ, оно не склеивается со следующими.
+ *
+ * Склеиваются только сообщения, попавшие в один batch: MaximumBatchingWindowInSeconds
+ * не задан, чтобы не добавлять задержку к каждому сообщению ради редких серий.
+ */
+@Slf4j
+public class MessageCoalescer {
+
+    private static final long COALESCE_WINDOW_MS = 10000;
+    private static final int MAX_MESSAGES_PER_GROUP = 5;
+
+    /**
+     * Склеенный запрос и исходные элементы, из которых он собран (в порядке поступления)
+     */
+    public record Group<T>(ChatRequest request, List<T> items) {
+    }
+
+    /**
+     * items — сообщения одного пользователя в порядке поступления.
+     * sentAtOf — время отправки (epoch millis), 0 если неизвестно (такие не склеиваются).
+     * awaitingReply — бот ждёт ответа пользователя: первое сообщение идёт отдельным запросом
+     */
+    public <T> List<Group<T>> coalesce(List<T> items, Function<T, ChatRequest> requestOf, ToLongFunction<T> sentAtOf,
+                                       boolean awaitingReply) {
+        RequestMetrics.count("Coalescer.Messages", items.size());
+        List<Group<T>> groups = new ArrayList<>();
+        List<T> current = new ArrayList<>();
+        for (T item : items) {
+            boolean answerDone = awaitingReply && groups.isEmpty() && !current.isEmpty();
+            if (!current.isEmpty() && (answerDone || !canJoin(current, item, requestOf, sentAtOf))) {
+                groups.add(toGroup(current, requestOf));
+                current = new ArrayList<>();
+            }
+            current.add(item);
+        }
+        if (!current.isEmpty()) {
+            groups.add(toGroup(current, requestOf));
+        }
+        return groups;
+    }
+
+    private <T> boolean canJoin(List<T> current, T next, Function<T, ChatRequest> requestOf, ToLongFunction<T> sentAtOf) {
+        T last = current.get(current.size() - 1);
+        ChatRequest lastRequest = requestOf.apply(last);
+        ChatRequest nextRequest = requestOf.apply(next);
+        long lastSentAt = sentAtOf.applyAsLong(last);
+        long nextSentAt = sentAtOf.applyAsLong(next);
+        return current.size() < MAX_MESSAGES_PER_GROUP
+                && !isAdminCommand(lastRequest) && !isAdminCommand(nextRequest)
+                && Objects.equals(lastRequest.getChatId(), nextRequest.getChatId())
+                && lastSentAt > 0 && nextSentAt > 0
+                && nextSentAt - lastSentAt <= COALESCE_WINDOW_MS;
+    }
+
+    private static boolean isAdminCommand(ChatRequest request) {
+        return request.getMessage() != null && request.getMessage().trim().startsWith("/");
+    }
+
+    private <T> Group<T> toGroup(List<T> items, Function<T, ChatRequest> requestOf) {
+        ChatRequest first = requestOf.apply(items.get(0));
+        if (items.size() == 1) {
+            return new Group<>(first, items);
+        }
+
+        List<String> texts = new ArrayList<>();
+        List<String> requestIds = new ArrayList<>();
+        for (T item : items) {
+            ChatRequest request = requestOf.apply(item);
+            if (request.getMessage() != null && !request.getMessage().isBlank()) {
+                texts.add(request.getMessage().trim());
+            }
+            requestIds.add(request.getRequestId());
+        }
+
+        // requestId склейки — из всех ID: детерминированный для дедупликации FIFO записей в Sheets.
+        // Идемпотентность обработки — по каждому сообщению отдельно (SQSHandler)
+        ChatRequest merged = ChatRequest.builder()
+                .chatId(first.getChatId())
+                .userId(first.getUserId())
+                .userName(first.getUserName())
+                .message(String.join("\n", texts))
+                .requestId(requestIds.contains(null) ? null : String.join("+", requestIds))
+                .build();
+
+        RequestMetrics.count("Coalescer.Coalesced", items.size());
+        RequestMetrics.count("Coalescer.SavedCalls", items.size() - 1);
+        log.info("Coalesced {} messages from user {} into one request", items.size(), first.getUserId());
+        return new Group<>(merged, List.copyOf(items));
+    }
+}
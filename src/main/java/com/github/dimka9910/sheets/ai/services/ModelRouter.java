@@ -0,0 +1,195 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommandList;
+import com.github.dimka9910.sheets.ai.dto.UserContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Выбор модели и reasoning effort для парсинга по сложности сообщения.
+ *
+ * Простое сообщение ("кофе 300") → LIGHT (минимальный reasoning, мало токенов).
+ * Сложное (длинное, несколько сумм, упоминание linked users, есть pending команды) → STANDARD.
+ * Если LIGHT вернул understood=false или невалидный результат — эскалация на STANDARD.
+ *
+ * Счётчики по тирам (латентность, токены, эскалации) — для подбора порогов.
+ */
+@Slf4j
+public class ModelRouter {
+
+    // Пороги сложности
+    private static final int MAX_SIMPLE_LENGTH = 80;
+    private static final int MAX_SIMPLE_AMOUNTS = 1;
+    private static final int NAME_PREFIX_LENGTH = 4;  // "Маша" / "Маше" / "Машей" — сравниваем по префиксу
+
+    /**
+     * Тир модели: модель, reasoning effort, лимит токенов и цены ($ за 1M токенов)
+     */
+    public enum Tier {
+        LIGHT("gpt-5-mini", "minimal", 1500, 0.25, 0.025, 2.00),
+        STANDARD("gpt-5-mini", "medium", 4000, 0.25, 0.025, 2.00);
+
+        private final String model;
+        private final String reasoningEffort;
+        private final int maxCompletionTokens;
+        private final double inputPricePer1M;
+        private final double cachedInputPricePer1M;
+        private final double outputPricePer1M;
+
+        Tier(String model, String reasoningEffort, int maxCompletionTokens,
+             double inputPricePer1M, double cachedInputPricePer1M, double outputPricePer1M) {
+            this.model = model;
+            this.reasoningEffort = reasoningEffort;
+            this.maxCompletionTokens = maxCompletionTokens;
+            this.inputPricePer1M = inputPricePer1M;
+            this.cachedInputPricePer1M = cachedInputPricePer1M;
+            this.outputPricePer1M = outputPricePer1M;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public String getReasoningEffort() {
+            return reasoningEffort;
+        }
+
+        public int getMaxCompletionTokens() {
+            return maxCompletionTokens;
+        }
+
+        /**
+         * Стоимость вызова в $. Закэшированные input токены тарифицируются дешевле
+         */
+        public double cost(int inputTokens, int cachedTokens, int outputTokens) {
+            return (inputTokens - cachedTokens) * inputPricePer1M / 1_000_000
+                    + cachedTokens * cachedInputPricePer1M / 1_000_000
+                    + outputTokens * outputPricePer1M / 1_000_000;
+        }
+
+        /**
+         * Следующий (более сильный) тир или null
+         */
+        public Tier next() {
+            return ordinal() + 1 < values().length ? values()[ordinal() + 1] : null;
+        }
+    }
+
+    /**
+     * Выбирает стартовый тир для сообщения
+     */
+    public Tier route(String userMessage, UserContext context) {
+        String message = userMessage != null ? userMessage.trim() : "";
+        List<String> reasons = new ArrayList<>();
+
+        if (message.length() > MAX_SIMPLE_LENGTH) {
+            reasons.add("length=" + message.length());
+        }
+        int amounts = countAmounts(message);
+        if (amounts > MAX_SIMPLE_AMOUNTS) {
+            reasons.add("amounts=" + amounts);
+        }
+        if (mentionsLinkedUser(message, context)) {
+            reasons.add("linked user");
+        }
+        if (context.getPendingCommands() != null && !context.getPendingCommands().isEmpty()) {
+            reasons.add("pending=" + context.getPendingCommands().size());
+        }
+
+        Tier tier = reasons.isEmpty() ? Tier.LIGHT : Tier.STANDARD;
+        log.info("Model route: {} ({})", tier, reasons.isEmpty() ? "simple" : String.join(", ", reasons));
+        return tier;
+    }
+
+    /**
+     * Нужна ли эскалация: AI не понял сообщение или вернул невалидные команды.
+     * Мета-команды (настройки, undo...) не валидируем — у них нет суммы.
+     */
+    public boolean needsEscalation(ParsedCommandList result) {
+        if (result.getMetaCommand() != null && result.getMetaCommand().isPresent()) {
+            return false;
+        }
+        if (!result.isUnderstood()) {
+            return true;
+        }
+        if (result.size() == 0) {
+            return true;
+        }
+        for (ParsedCommand cmd : result.getCommands()) {
+            if (cmd.getOperationType() == null || cmd.getAmount() == null || cmd.getAmount() <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Записывает результат вызова тира (счётчики ModelTier.<тир>.* в RequestMetrics)
+     */
+    public static void record(Tier tier, long latencyMillis, int tokens, boolean escalated) {
+        String prefix = "ModelTier." + tier + ".";
+        RequestMetrics.count(prefix + "Calls");
+        RequestMetrics.count(prefix + "LatencyMs", latencyMillis);
+        RequestMetrics.count(prefix + "Tokens", tokens);
+        if (escalated) {
+            RequestMetrics.count(prefix + "Escalations");
+        }
+    }
+
+    /**
+     * Сколько токенов похожи на сумму (содержат цифру)
+     */
+    private static int countAmounts(String message) {
+        int count = 0;
+        for (String token : message.split("[\\s,;]+")) {
+            for (int i = 0; i < token.length(); i++) {
+                if (Character.isDigit(token.charAt(i))) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Упоминается ли в сообщении кто-то из linked users (по префиксу имени — учитываем падежи)
+     */
+    private static boolean mentionsLinkedUser(String message, UserContext context) {
+        List<String> names = new ArrayList<>();
+        if (context.getLinkedUsers() != null) {
+            for (String entry : context.getLinkedUsers()) {
+                // Формат: "NAME (userId)" или просто "userId"
+                int bracket = entry.indexOf('(');
+                if (bracket > 0) {
+                    names.add(entry.substring(0, bracket).trim());
+                }
+            }
+        }
+        if (context.getLinkedUserContexts() != null) {
+            for (UserContext linked : context.getLinkedUserContexts().values()) {
+                names.add(linked.getUserName());
+                names.add(linked.getDisplayName());
+            }
+        }
+
+        String lower = message.toLowerCase(Locale.ROOT);
+        for (String name : names) {
+            if (name == null || name.isBlank()) {
+                continue;
+            }
+            String prefix = name.trim().toLowerCase(Locale.ROOT);
+            prefix = prefix.substring(0, Math.min(NAME_PREFIX_LENGTH, prefix.length()));
+            for (String word : lower.split("[^\\p{L}]+")) {
+                if (word.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommandList;
+import com.github.dimka9910.sheets.ai.dto.UserContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Приводит accountName / secondAccount / fundName из ответа AI к каноническим именам пользователя.
+ *
+ * AI иногда возвращает "tinkoff" вместо "TINKOFF", "Продукты" вместо "ПРОДУКТЫ", "наличка" вместо "CASH_RUB"...
+ * Такие строки либо пишутся в Sheets мусором, либо вызывают лишний уточняющий round trip.
+ *
+ * Порядок: точное совпадение → нормализованная форма (регистр, _/-/пробелы, транслит) →
+ * BK-tree по расстоянию Левенштейна → триграммы. Однозначного кандидата нет — имя неизвестно:
+ * поле очищается, а в clarification перечисляются варианты.
+ *
+ * Индекс строится на пользователя и кэшируется, пока не изменятся его списки.
+ */
+@Slf4j
+public class NameResolver {
+
+    private static final int MAX_CACHED_INDEXES = 200;
+    private static final double MIN_TRIGRAM_SCORE = 0.6;
+    private static final double MIN_TRIGRAM_MARGIN = 0.1;   // Отрыв от второго кандидата
+    private static final int MAX_OPTIONS_IN_CLARIFICATION = 8;
+
+    // Буферы для Левенштейна — без аллокаций на каждое сравнение
+    private static final ThreadLocal<int[][]> distanceRows = ThreadLocal.withInitial(() -> new int[2][32]);
+
+    private final Map<String, Index> indexes = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Index> eldest) {
+            return size() > MAX_CACHED_INDEXES;
+        }
+    };
+
+    /**
+     * Нормализует имена во всех командах. Если какое-то имя не удалось сопоставить —
+     * результат становится уточнением (understood=false) со списком вариантов.
+     *
+     * @return true, если найдены неизвестные имена
+     */
+    public boolean resolve(ParsedCommandList parsedList, UserContext context) {
+        if (parsedList.getCommands() == null || parsedList.getCommands().isEmpty()) {
+            return false;
+        }
+
+        Index accounts = index(context, "accounts", collect(context, true));
+        Index funds = index(context, "funds", collect(context, false));
+
+        List<String> unknownNames = new ArrayList<>();
+        List<String> options = new ArrayList<>();
+        for (ParsedCommand cmd : parsedList.getCommands()) {
+            if (accounts != null) {
+                cmd.setAccountName(resolveField(cmd.getAccountName(), accounts, unknownNames, options));
+                cmd.setSecondAccount(resolveField(cmd.getSecondAccount(), accounts, unknownNames, options));
+            }
+            if (funds != null) {
+                cmd.setFundName(resolveField(cmd.getFundName(), funds, unknownNames, options));
+            }
+        }
+
+        if (unknownNames.isEmpty()) {
+            return false;
+        }
+
+        // Без хардкода языка: "❓ «tinkof» → CARD, CASH, ..." — AI заполнит поле из ответа пользователя
+        String clarification = "❓ «" + String.join("», «", unknownNames) + "» → "
+                + String.join(", ", options.subList(0, Math.min(options.size(), MAX_OPTIONS_IN_CLARIFICATION)));
+        log.info("Unknown names in AI result: {}", unknownNames);
+        parsedList.setUnderstood(false);
+        parsedList.setClarification(parsedList.getClarification() != null
+                ? parsedList.getClarification() + "\n" + clarification : clarification);
+        return true;
+    }
+
+    /**
+     * Все счета/фонды команд — точные канонические имена пользователя (или linked users, или default).
+     * Пустые поля не проверяются
+     */
+    static boolean knowsAll(ParsedCommandList parsedList, UserContext context) {
+        List<String> accounts = collect(context, true);
+        List<String> funds = collect(context, false);
+        for (ParsedCommand cmd : parsedList.getCommands()) {
+            if (!isKnown(cmd.getAccountName(), accounts) || !isKnown(cmd.getSecondAccount(), accounts)
+                    || !isKnown(cmd.getFundName(), funds)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isKnown(String name, List<String> names) {
+        return name == null || name.isBlank() || names.contains(name);
+    }
+
+    private String resolveField(String name, Index index, List<String> unknownNames, List<String> options) {
+        if (name == null || name.isBlank()) {
+            return name;
+        }
+        String resolved = index.resolve(name);
+        if (resolved == null) {
+            RequestMetrics.count("Names.Unknown");
+            unknownNames.add(name);
+            for (String canonical : index.names) {
+                if (!options.contains(canonical)) {
+                    options.add(canonical);
+                }
+            }
+            return null;
+        }
+        if (resolved.equals(name)) {
+            RequestMetrics.count("Names.Exact");
+        } else {
+            RequestMetrics.count("Names.Snapped");
+            log.info("Snapped name '{}' → '{}'", name, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Имена пользователя + linked users (AI может записать операцию на их счёт/фонд).
+     * Default account/fund тоже кандидаты: SET_DEFAULT_* и PATCH /defaults не добавляют их в списки,
+     * а промпт велит AI подставлять default.
+     */
+    private static List<String> collect(UserContext context, boolean accounts) {
+        List<String> names = new ArrayList<>();
+        addNames(names, context, accounts);
+        if (context.getLinkedUserContexts() != null) {
+            for (UserContext linked : context.getLinkedUserContexts().values()) {
+                addNames(names, linked, accounts);
+            }
+        }
+        return names;
+    }
+
+    private static void addNames(List<String> target, UserContext context, boolean accounts) {
+        addAll(target, accounts ? context.getAccounts() : context.getFunds());
+        String defaultName = accounts ? context.getDefaultAccount() : context.getDefaultFund();
+        if (defaultName != null) {
+            addAll(target, List.of(defaultName));
+        }
+    }
+
+    private static void addAll(List<String> target, List<String> values) {
+        if (values == null) {
+            return;
+        }
+        for (String value : values) {
+            if (value != null && !value.isBlank() && !target.contains(value)) {
+                target.add(value);
+            }
+        }
+    }
+
+    private Index index(UserContext context, String kind, List<String> names) {
+        if (names.isEmpty()) {
+            return null;  // Нечего сопоставлять — онбординг/lazy setup разберутся
+        }
+        String key = context.getUserId() + "#" + kind;
+        synchronized (indexes) {
+            Index index = indexes.get(key);
+            if (index == null || !index.names.equals(names)) {
+                index = new Index(names);
+                indexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Нормализованная форма: нижний регистр, без _ - пробелов и точек, ё→е, транслит кириллицы
+     */
+    static String normalize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (String word : TrigramIndex.words(name)) {
+            sb.append(word);
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isDigit(name.charAt(i))) {
+                sb.append(name.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Расстояние Левенштейна на двух переиспользуемых строках
+     */
+    static int levenshtein(String a, String b) {
+        int[][] rows = distanceRows.get();
+        if (rows[0].length <= b.length()) {
+            rows = new int[2][b.length() * 2 + 1];
+            distanceRows.set(rows);
+        }
+        int[] previous = rows[0];
+        int[] current = rows[1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            char ca = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * Индекс имён одного пользователя
+     */
+    private static class Index {
+
+        private final List<String> names;
+        private final Map<String, String> byNormalized = new HashMap<>();
+        private final BkNode root;
+        private final List<Set<String>> trigrams = new ArrayList<>();
+
+        Index(List<String> names) {
+            this.names = List.copyOf(names);
+            BkNode tree = null;
+            for (String name : this.names) {
+                String normalized = normalize(name);
+                byNormalized.putIfAbsent(normalized, name);
+                trigrams.add(TrigramIndex.trigrams(normalized));
+                if (tree == null) {
+                    tree = new BkNode(normalized, name);
+                } else {
+                    tree.add(normalized, name);
+                }
+            }
+            this.root = tree;
+        }
+
+        /**
+         * Каноническое имя или null, если однозначного совпадения нет
+         */
+        String resolve(String name) {
+            // Быстрый путь — AI вернул имя как есть
+            for (String canonical : names) {
+                if (canonical.equals(name)) {
+                    return canonical;
+                }
+            }
+
+            String normalized = normalize(name);
+            if (normalized.isEmpty()) {
+                return null;
+            }
+            String byForm = byNormalized.get(normalized);
+            if (byForm != null) {
+                return byForm;
+            }
+
+            // Опечатки: 1 правка на каждые 4 символа, но не больше 2
+            int maxDistance = Math.min(2, Math.max(1, normalized.length() / 4));
+            BkMatch match = new BkMatch();
+            root.search(normalized, maxDistance, match);
+            if (match.best != null && !match.ambiguous) {
+                return match.best;
+            }
+
+            // Частичные совпадения: "tinkoff" ↔ "TINKOFF_EUR"
+            Set<String> query = TrigramIndex.trigrams(normalized);
+            double best = 0;
+            double second = 0;
+            String bestName = null;
+            for (int i = 0; i < names.size(); i++) {
+                double score = TrigramIndex.dice(query, trigrams.get(i));
+                if (score > best) {
+                    second = best;
+                    best = score;
+                    bestName = names.get(i);
+                } else if (score > second) {
+                    second = score;
+                }
+            }
+            return best >= MIN_TRIGRAM_SCORE && best - second >= MIN_TRIGRAM_MARGIN ? bestName : null;
+        }
+    }
+
+    /**
+     * Узел BK-tree: дети по расстоянию до родителя
+     */
+    private static class BkNode {
+
+        private final String normalized;
+        private final String canonical;
+        private final Map<Integer, BkNode> children = new HashMap<>(4);
+
+        BkNode(String normalized, String canonical) {
+            this.normalized = normalized;
+            this.canonical = canonical;
+        }
+
+        void add(String value, String canonicalName) {
+            BkNode node = this;
+            while (true) {
+                int distance = levenshtein(value, node.normalized);
+                if (distance == 0) {
+                    return;
+                }
+                BkNode child = node.children.get(distance);
+                if (child == null) {
+                    node.children.put(distance, new BkNode(value, canonicalName));
+                    return;
+                }
+                node = child;
+            }
+        }
+
+        void search(String value, int maxDistance, BkMatch match) {
+            int distance = levenshtein(value, normalized);
+            if (distance <= maxDistance) {
+                match.offer(canonical, distance);
+            }
+            for (Map.Entry<Integer, BkNode> child : children.entrySet()) {
+                int edge = child.getKey();
+                if (edge >= distance - maxDistance && edge <= distance + maxDistance) {
+                    child.getValue().search(value, maxDistance, match);
+                }
+            }
+        }
+    }
+
+    /**
+     * Лучший кандидат поиска по BK-tree; два кандидата на одном расстоянии — неоднозначно
+     */
+    private static class BkMatch {
+        private String best;
+        private int bestDistance = Integer.MAX_VALUE;
+        private boolean ambiguous;
+
+        void offer(String canonical, int distance) {
+            if (distance < bestDistance) {
+                best = canonical;
+                bestDistance = distance;
+                ambiguous = false;
+            } else if (distance == bestDistance && !canonical.equals(best)) {
+                ambiguous = true;
+            }
+        }
+    }
+}
@@ -9,11 +9,9 @@ import com.github.dimka9910.sheets.ai.dto.UserContext;
 import com.github.dimka9910.sheets.ai.config.AppConfig;
 import lombok.extern.slf4j.Slf4j;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Сервис онбординга новых пользователей.
@@ -24,14 +22,20 @@ import java.util.List;
 public class OnboardingService {
 
     private final UserContextService userContextService;
-    private final HttpClient httpClient;
+    private final LlmClient llmClient;
     private final ObjectMapper objectMapper;
     
-    private static final String OPENAI_API_URL = "https://api.openai.com/v1/chat/completions";
+    private static final String MODEL = "gpt-4o";
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
 
     public OnboardingService(UserContextService userContextService) {
+        this(userContextService, LlmClient.getShared());
+    }
+
+    // Конструктор для тестирования
+    public OnboardingService(UserContextService userContextService, LlmClient llmClient) {
         this.userContextService = userContextService;
-        this.httpClient = HttpClient.newHttpClient();
+        this.llmClient = llmClient;
         this.objectMapper = new ObjectMapper();
     }
 
@@ -144,34 +148,14 @@ public class OnboardingService {
         String systemPrompt = buildOnboardingPrompt(context, state);
         
         try {
-            String requestBody = objectMapper.writeValueAsString(new java.util.HashMap<String, Object>() {{
-                put("model", "gpt-4o");
-                put("messages", List.of(
-                    new java.util.HashMap<String, String>() {{
-                        put("role", "system");
-                        put("content", systemPrompt);
-                    }},
-                    new java.util.HashMap<String, String>() {{
-                        put("role", "user");
-                        put("content", userMessage);
-                    }}
-                ));
-                put("temperature", 0.7);
-                put("max_tokens", 500);
-            }});
-
-            HttpRequest httpRequest = HttpRequest.newBuilder()
-                    .uri(URI.create(OPENAI_API_URL))
-                    .header("Content-Type", "application/json")
-                    .header("Authorization", "Bearer " + AppConfig.getOpenAiApiKey())
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .build();
-
-            HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-            log.info("OpenAI response status: {}", response.statusCode());
-            log.info("OpenAI raw response: {}", response.body());
-            
-            JsonNode root = objectMapper.readTree(response.body());
+            JsonNode root = llmClient.complete(Map.of(
+                    "model", MODEL,
+                    "messages", List.of(
+                            Map.of("role", "system", "content", systemPrompt),
+                            Map.of("role", "user", "content", userMessage)),
+                    "temperature", 0.7,
+                    "max_tokens", 500), REQUEST_TIMEOUT);
+            log.info("OpenAI raw response: {}", root);
             
             // Check for API error
             if (root.has("error")) {
@@ -182,7 +166,7 @@ public class OnboardingService {
             
             JsonNode choices = root.path("choices");
             if (choices.isMissingNode() || !choices.isArray() || choices.size() == 0) {
-                log.error("OpenAI response has no choices: {}", response.body());
+                log.error("OpenAI response has no choices: {}", root);
                 return "{\"responseMessage\": \"Error occurred. Please try again.\", \"stepComplete\": false}";
             }
             
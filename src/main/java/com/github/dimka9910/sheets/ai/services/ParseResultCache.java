@@ -0,0 +1,267 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.dimka9910.sheets.ai.config.AppConfig;
+import com.github.dimka9910.sheets.ai.dto.ConversationMessage;
+import com.github.dimka9910.sheets.ai.dto.OperationTypeEnum;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommandList;
+import com.github.dimka9910.sheets.ai.dto.UserContext;
+import com.github.dimka9910.sheets.ai.repository.ParseCacheRepository;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Кэш ответов AI для parseMultiple.
+ *
+ * Ключ = нормализованное сообщение + fingerprint той части UserContext, которая попадает в промпт
+ * (дефолты, счета, фонды, инструкции, последняя операция, pending команды, история диалога).
+ * Любое изменение контекста меняет fingerprint — старые записи просто перестают совпадать.
+ * В ключ входят и версия промпта, и модели тиров: после деплоя с новым промптом или моделью
+ * общий DynamoDB кэш не отдаёт разборы старой версии.
+ *
+ * Уровни:
+ * 1. LRU + TTL в памяти — живёт пока жив warm Lambda контейнер
+ * 2. (опционально) общий DynamoDB кэш — если задан PARSE_CACHE_TABLE_NAME
+ */
+@Slf4j
+public class ParseResultCache {
+
+    private static final int MAX_ENTRIES = 500;
+    private static final Duration TTL = Duration.ofHours(6);
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final ParseCacheRepository sharedTier;
+    private final ObjectMapper objectMapper;
+
+    public ParseResultCache() {
+        this(createSharedTier());
+    }
+
+    // Конструктор для тестирования
+    public ParseResultCache(ParseCacheRepository sharedTier) {
+        this.sharedTier = sharedTier;
+        this.objectMapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    private static ParseCacheRepository createSharedTier() {
+        String tableName = AppConfig.getParseCacheTableName();
+        if (tableName == null) {
+            log.info("PARSE_CACHE_TABLE_NAME is not set - parse cache is in-memory only");
+            return null;
+        }
+        return new ParseCacheRepository(tableName);
+    }
+
+    /**
+     * Возвращает закэшированный результат (новую копию) или null
+     */
+    public ParsedCommandList get(String userMessage, UserContext context) {
+        String key = buildKey(userMessage, context);
+        long now = System.currentTimeMillis();
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAt() < now) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            RequestMetrics.count("ParseCache.MemoryHits");
+            return toResult(entry, "memory");
+        }
+
+        if (sharedTier != null) {
+            Optional<Entry> shared = sharedTier.get(key)
+                    .filter(e -> e.getExpiresAt() != null && e.getExpiresAt() * 1000 > now)
+                    .map(e -> new Entry(e.getPayload(), e.getTokens() != null ? e.getTokens() : 0, e.getExpiresAt() * 1000));
+            if (shared.isPresent()) {
+                synchronized (entries) {
+                    entries.put(key, shared.get());
+                }
+                RequestMetrics.count("ParseCache.SharedHits");
+                return toResult(shared.get(), "dynamodb");
+            }
+        }
+
+        RequestMetrics.count("ParseCache.Misses");
+        return null;
+    }
+
+    /**
+     * Сохраняет успешный ответ AI. tokenUsage не кэшируется — он относится к конкретному вызову.
+     * Уточнения, off-topic, ошибки и мета-команды не кэшируются: свежий вызов AI может ответить иначе,
+     * а неудачный разбор не должен повторяться 6 часов.
+     */
+    public void put(String userMessage, UserContext context, ParsedCommandList result, int tokens) {
+        if (!isCacheable(result, context)) {
+            log.debug("Parse result is not cacheable (understood={}, clarification={})",
+                    result.isUnderstood(), result.getClarification() != null);
+            return;
+        }
+        try {
+            String key = buildKey(userMessage, context);
+            String payload = objectMapper.writeValueAsString(result);
+            long expiresAt = System.currentTimeMillis() + TTL.toMillis();
+            Entry entry = new Entry(payload, tokens, expiresAt);
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+            if (sharedTier != null) {
+                sharedTier.put(key, payload, tokens, expiresAt / 1000);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to cache parse result: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Только полностью распознанные финансовые команды, чьи счета и фонды известны пользователю
+     * (то есть пройдут проверку NameResolver без уточнения)
+     */
+    private static boolean isCacheable(ParsedCommandList result, UserContext context) {
+        if (!result.isUnderstood() || result.getClarification() != null || result.getErrorMessage() != null
+                || (result.getMetaCommand() != null && result.getMetaCommand().isPresent())
+                || result.getCommands() == null || result.getCommands().isEmpty()) {
+            return false;
+        }
+        for (ParsedCommand cmd : result.getCommands()) {
+            // Как проверка команд в ChatCommandService.buildResponse (understood команды AI не заполняет)
+            if (cmd.getOperationType() == null || cmd.getOperationType() == OperationTypeEnum.UNKNOWN
+                    || cmd.getAmount() == null || cmd.getClarification() != null || cmd.getErrorMessage() != null) {
+                return false;
+            }
+        }
+        return NameResolver.knowsAll(result, context);
+    }
+
+    private ParsedCommandList toResult(Entry entry, String tier) {
+        try {
+            ParsedCommandList result = objectMapper.readValue(entry.payload(), ParsedCommandList.class);
+            long avoided = RequestMetrics.count("ParseCache.AvoidedTokens", entry.tokens());
+            result.setTokenUsage(String.format("♻️ cache hit (%s), ~%d tokens saved", tier, entry.tokens()));
+            log.info("Parse cache hit ({}): {} tokens avoided, {} total", tier, entry.tokens(), avoided);
+            return result;
+        } catch (Exception e) {
+            log.warn("Failed to read cached parse result: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Ключ кэша: нормализованное сообщение + SHA-256 от версии промпта, моделей и контекста, влияющего на промпт
+     */
+    String buildKey(String userMessage, UserContext context) {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(normalizeMessage(userMessage)).append('\u0000');
+
+        // Результат может дать любой тир (эскалация) — учитываем все
+        sb.append(PromptBuilder.promptVersion()).append('|');
+        for (ModelRouter.Tier tier : ModelRouter.Tier.values()) {
+            sb.append(tier.getModel()).append(',')
+                    .append(tier.getReasoningEffort()).append(',')
+                    .append(tier.getMaxCompletionTokens()).append(';');
+        }
+        sb.append('|');
+
+        sb.append(context.getDisplayName()).append('|')
+                .append(context.getPreferredLanguage()).append('|')
+                .append(context.getDefaultCurrency()).append('|')
+                .append(context.getDefaultAccount()).append('|')
+                .append(context.getDefaultFund()).append('|')
+                .append(context.getAccounts()).append('|')
+                .append(context.getFunds()).append('|')
+                .append(context.getCustomInstructions()).append('|')
+                .append(context.getLinkedUsers()).append('|');
+
+        // Контексты linked users тоже попадают в промпт — сортируем для стабильности
+        if (context.getLinkedUserContexts() != null) {
+            for (Map.Entry<String, UserContext> linked : new TreeMap<>(context.getLinkedUserContexts()).entrySet()) {
+                UserContext lc = linked.getValue();
+                sb.append(linked.getKey()).append(':')
+                        .append(lc.getUserName()).append(',')
+                        .append(lc.getAccounts()).append(',')
+                        .append(lc.getDefaultAccount()).append(',')
+                        .append(lc.getFunds()).append(',')
+                        .append(lc.getDefaultFund()).append(';');
+            }
+        }
+        sb.append('|');
+
+        appendCommand(sb, context.getLastOperation());
+        sb.append('|');
+        appendCommands(sb, context.getPendingCommands());
+        sb.append('|');
+
+        List<ConversationMessage> history = context.getConversationHistory();
+        if (history != null) {
+            for (ConversationMessage msg : history) {
+                sb.append(msg.getRole()).append(':').append(msg.getContent()).append(';');
+            }
+        }
+
+        return sha256(sb.toString());
+    }
+
+    private static void appendCommands(StringBuilder sb, List<ParsedCommand> commands) {
+        if (commands == null) {
+            return;
+        }
+        for (ParsedCommand cmd : commands) {
+            appendCommand(sb, cmd);
+            sb.append(';');
+        }
+    }
+
+    private static void appendCommand(StringBuilder sb, ParsedCommand cmd) {
+        if (cmd == null) {
+            return;
+        }
+        sb.append(cmd.getOperationType()).append(',')
+                .append(cmd.getAmount()).append(',')
+                .append(cmd.getCurrency()).append(',')
+                .append(cmd.getAccountName()).append(',')
+                .append(cmd.getFundName()).append(',')
+                .append(cmd.getComment()).append(',')
+                .append(cmd.getSecondPerson()).append(',')
+                .append(cmd.getSecondAccount()).append(',')
+                .append(cmd.getSecondCurrency());
+    }
+
+    private static String normalizeMessage(String message) {
+        return message == null ? "" : message.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private record Entry(String payload, int tokens, long expiresAt) {
+    }
+}
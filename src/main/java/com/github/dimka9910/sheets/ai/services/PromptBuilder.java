@@ -12,6 +12,9 @@ import java.util.Map;
  */
 public class PromptBuilder {
 
+    // Увеличивать при изменении сборки промпта или JSON схемы ответа — сбрасывает кэш разборов
+    private static final int PROMPT_VERSION = 1;
+
     private static final String BASE_SYSTEM_PROMPT = """
             You are a financial assistant. Your task is to parse user's text commands and convert them to structured JSON.
             
@@ -424,14 +427,52 @@ public class PromptBuilder {
             Do NOT add any text before or after JSON.
             """;
 
+    private final ContextRelevanceSelector relevanceSelector = new ContextRelevanceSelector();
+
     /**
-     * Собирает полный промпт с учётом контекста пользователя
+     * Версия промпта для ключа кэша разборов: PROMPT_VERSION + хэш базового шаблона
+     * (правка текста шаблона меняет версию сама, правки сборки — через PROMPT_VERSION)
+     */
+    public static String promptVersion() {
+        return PROMPT_VERSION + "." + Integer.toHexString(BASE_SYSTEM_PROMPT.hashCode());
+    }
+
+    /**
+     * Собирает полный промпт с учётом контекста пользователя одной строкой
+     * (для логов и обратной совместимости — в OpenAI уходит {@link #buildMessages})
      */
     public String buildPrompt(UserContext context, String userMessage) {
-        StringBuilder prompt = new StringBuilder(BASE_SYSTEM_PROMPT);
-        
-        // Добавляем контекст пользователя
-        prompt.append("\n\n### User Context ###\n");
+        return buildMessages(context, userMessage).toText();
+    }
+
+    /**
+     * Собирает промпт из трёх частей — от самой стабильной к самой изменчивой.
+     * Порядок важен: OpenAI кэширует общий префикс запроса, поэтому BASE_SYSTEM_PROMPT
+     * должен идти первым и быть байт-в-байт одинаковым для всех пользователей.
+     */
+    public Prompt buildMessages(UserContext context, String userMessage) {
+        // Большие списки счетов/фондов/инструкций — только релевантная сообщению часть
+        ContextRelevanceSelector.Selection selection = relevanceSelector.select(context, userMessage);
+        String userProfile = buildUserProfile(context, selection);
+        if (selection.filtered()) {
+            String fullProfile = buildUserProfile(context, ContextRelevanceSelector.Selection.full(context));
+            ContextRelevanceSelector.recordSavings(fullProfile.length(), userProfile.length());
+        }
+        return new Prompt(
+                BASE_SYSTEM_PROMPT,
+                userProfile,
+                buildConversationTurn(context, userMessage)
+        );
+    }
+
+    /**
+     * Профиль пользователя: дефолты, счета, фонды, linked users, инструкции.
+     * Меняется редко — между сообщениями одного пользователя обычно совпадает
+     * (кроме пользователей с большими списками — им показываем selection).
+     */
+    private String buildUserProfile(UserContext context, ContextRelevanceSelector.Selection selection) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("### User Context ###\n");
         
         if (context.getDisplayName() != null) {
             prompt.append("User name: ").append(context.getDisplayName()).append("\n");
@@ -467,9 +508,11 @@ public class PromptBuilder {
         }
         
         // Счета пользователя
-        List<String> accounts = context.getAccounts();
+        List<String> accounts = selection.accounts();
         if (accounts != null && !accounts.isEmpty()) {
-            prompt.append("\n## User's accounts:\n");
+            prompt.append("\n## User's accounts");
+            appendShownOf(prompt, accounts.size(), context.getAccounts().size());
+            prompt.append(":\n");
             prompt.append(String.join(", ", accounts)).append("\n");
             prompt.append("(Match user input to these account names)\n");
         } else {
@@ -477,9 +520,11 @@ public class PromptBuilder {
         }
         
         // Фонды пользователя
-        List<String> funds = context.getFunds();
+        List<String> funds = selection.funds();
         if (funds != null && !funds.isEmpty()) {
-            prompt.append("\n## User's funds/categories:\n");
+            prompt.append("\n## User's funds/categories");
+            appendShownOf(prompt, funds.size(), context.getFunds().size());
+            prompt.append(":\n");
             prompt.append(String.join(", ", funds)).append("\n");
             prompt.append("(Match user input to these fund names)\n");
         } else {
@@ -529,13 +574,30 @@ public class PromptBuilder {
         // Кастомные инструкции (с индексами для REMOVE_INSTRUCTION)
         List<String> instructions = context.getCustomInstructions();
         if (instructions != null && !instructions.isEmpty()) {
-            prompt.append("\n## User's custom instructions (IMPORTANT - follow these!):\n");
-            for (int i = 0; i < instructions.size(); i++) {
+            prompt.append("\n## User's custom instructions (IMPORTANT - follow these!)");
+            appendShownOf(prompt, selection.instructionIndices().size(), instructions.size());
+            prompt.append(":\n");
+            for (int i : selection.instructionIndices()) {
                 prompt.append("  [").append(i).append("] ").append(instructions.get(i)).append("\n");
             }
             prompt.append("⚠️ To REMOVE instruction: metaCommand={type:\"REMOVE_INSTRUCTION\", value:\"INDEX\"}\n");
         }
         
+        return prompt.toString();
+    }
+
+    private static void appendShownOf(StringBuilder prompt, int shown, int total) {
+        if (shown < total) {
+            prompt.append(" (").append(shown).append(" of ").append(total).append(" most relevant to this message)");
+        }
+    }
+
+    /**
+     * Изменчивая часть: последняя операция, pending команды, история и само сообщение
+     */
+    private String buildConversationTurn(UserContext context, String userMessage) {
+        StringBuilder prompt = new StringBuilder();
+        
         // Последняя операция (для правки)
         var lastOp = context.getLastOperation();
         if (lastOp != null) {
@@ -592,4 +654,27 @@ public class PromptBuilder {
     public String buildSimplePrompt(String userMessage) {
         return BASE_SYSTEM_PROMPT + "\n\nUser message: " + userMessage;
     }
+
+    /**
+     * Промпт, разбитый на chat messages:
+     * system (стабильный префикс) → system (профиль пользователя) → user (история + сообщение)
+     */
+    public record Prompt(String systemPrefix, String userProfile, String conversationTurn) {
+
+        public List<Map<String, String>> toMessages() {
+            return List.of(
+                    Map.of("role", "system", "content", systemPrefix),
+                    Map.of("role", "system", "content", userProfile),
+                    Map.of("role", "user", "content", conversationTurn)
+            );
+        }
+
+        public String toText() {
+            return systemPrefix + "\n\n" + userProfile + conversationTurn;
+        }
+
+        public int length() {
+            return systemPrefix.length() + userProfile.length() + conversationTurn.length();
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package com.github.dimka9910.sheets.ai.services;
+
+/**
+ * Дедлайн текущего запроса (на поток).
+ * Handler выставляет его из Context.getRemainingTimeInMillis(), чтобы вызовы OpenAI
+ * с ретраями не съедали весь таймаут Lambda. Без дедлайна — ограничений нет.
+ */
+public final class RequestDeadline {
+
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    private RequestDeadline() {
+    }
+
+    /**
+     * Начать отсчёт: на запрос осталось remainingMillis
+     */
+    public static void start(long remainingMillis) {
+        deadline.set(System.currentTimeMillis() + remainingMillis);
+    }
+
+    /**
+     * Сколько миллисекунд осталось (Long.MAX_VALUE, если дедлайн не задан)
+     */
+    public static long remainingMillis() {
+        Long value = deadline.get();
+        return value != null ? value - System.currentTimeMillis() : Long.MAX_VALUE;
+    }
+
+    public static void clear() {
+        deadline.remove();
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Тайминги этапов обработки одного запроса (на поток, как RequestDeadline).
+ *
+ * В конце запроса flush() пишет строку в CloudWatch Embedded Metric Format (stdout →
+ * CloudWatch Logs → метрики без PutMetricData) и добавляет значения в гистограммы
+ * контейнера — их перцентили периодически пишутся в лог и видны в debug режиме.
+ *
+ * Счётчики компонентов (попадания кэша, ретраи, эскалации...) — тоже здесь: count() увеличивает
+ * счётчик контейнера и, если замер запроса идёт в этом потоке, уходит в EMF строку запроса (Unit Count).
+ * Имя счётчика — "Группа.Имя"; debug режим показывает их по группам (getCounterStats).
+ * Состояние, которое не счётчик (circuit breaker), — gauge.
+ *
+ * Измерения без userId: Function и Operation — чтобы не плодить кардинальность.
+ */
+@Slf4j
+public final class RequestMetrics {
+
+    // Этапы
+    public static final String CONTEXT_LOAD = "ContextLoad";
+    public static final String LINKED_CONTEXTS_LOAD = "LinkedContextsLoad";
+    public static final String PROMPT_BUILD = "PromptBuild";
+    public static final String OPENAI_CALL = "OpenAiCall";
+    public static final String FIRST_COMMAND = "FirstCommand";
+    public static final String JSON_PARSE = "JsonParse";
+    public static final String SQS_SEND = "SqsSend";
+    public static final String CONTEXT_SAVE = "ContextSave";
+    public static final String TELEGRAM_SEND = "TelegramSend";
+    public static final String FIRST_FEEDBACK = "FirstFeedback";  // От отправки сообщения пользователем
+    public static final String TOTAL = "Total";
+
+    private static final String NAMESPACE = "FinanceTracker/AIParser";
+    private static final int SUMMARY_EVERY_REQUESTS = 50;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ThreadLocal<Request> current = new ThreadLocal<>();
+
+    // Гистограммы по этапам за время жизни контейнера
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final AtomicLong flushedRequests = new AtomicLong();
+
+    // Счётчики и gauges компонентов за время жизни контейнера
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<Object>> gauges = new ConcurrentHashMap<>();
+
+    private RequestMetrics() {
+    }
+
+    /**
+     * Начать замер запроса в текущем потоке
+     */
+    public static void start() {
+        current.set(new Request(System.currentTimeMillis()));
+    }
+
+    /**
+     * Записать длительность этапа. Этап может повторяться (несколько отправок в SQS) —
+     * в EMF уйдут все значения
+     */
+    public static void record(String stage, long millis) {
+        Request request = current.get();
+        if (request != null) {
+            request.stages.computeIfAbsent(stage, s -> new ArrayList<>(2)).add(millis);
+        }
+    }
+
+    /**
+     * Увеличить счётчик на 1. Возвращает новое значение за время жизни контейнера
+     */
+    public static long count(String counter) {
+        return count(counter, 1);
+    }
+
+    public static long count(String counter, long delta) {
+        Request request = current.get();
+        if (request != null) {
+            request.counts.merge(counter, delta, Long::sum);
+        }
+        return counters.computeIfAbsent(counter, c -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Текущее значение счётчика за время жизни контейнера
+     */
+    public static long counter(String counter) {
+        AtomicLong value = counters.get(counter);
+        return value != null ? value.get() : 0;
+    }
+
+    /**
+     * Значение, которое показывается рядом со счётчиками своей группы (читается при показе)
+     */
+    public static void gauge(String name, Supplier<Object> value) {
+        gauges.put(name, value);
+    }
+
+    public static <T> T time(String stage, Supplier<T> action) {
+        long startedAt = System.currentTimeMillis();
+        try {
+            return action.get();
+        } finally {
+            record(stage, System.currentTimeMillis() - startedAt);
+        }
+    }
+
+    public static void time(String stage, Runnable action) {
+        long startedAt = System.currentTimeMillis();
+        try {
+            action.run();
+        } finally {
+            record(stage, System.currentTimeMillis() - startedAt);
+        }
+    }
+
+    /**
+     * Завершить замер: EMF строка в stdout + гистограммы контейнера.
+     * operation — измерение (sqs / api)
+     */
+    public static void flush(String operation) {
+        Request request = current.get();
+        current.remove();
+        if (request == null) {
+            return;
+        }
+        request.stages.computeIfAbsent(TOTAL, s -> new ArrayList<>(1))
+                .add(System.currentTimeMillis() - request.startedAt);
+
+        for (Map.Entry<String, List<Long>> stage : request.stages.entrySet()) {
+            LatencyHistogram histogram = histograms.computeIfAbsent(stage.getKey(), s -> new LatencyHistogram());
+            stage.getValue().forEach(histogram::record);
+        }
+
+        emitEmf(operation, request);
+
+        if (flushedRequests.incrementAndGet() % SUMMARY_EVERY_REQUESTS == 0) {
+            log.info("Stage latency percentiles: {}", getStats());
+        }
+    }
+
+    /**
+     * Перцентили по этапам за время жизни контейнера (для логов и debug режима)
+     */
+    public static String getStats() {
+        StringBuilder sb = new StringBuilder("latency p50/p90/p99 ms:");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            sb.append(String.format(" %s %d/%d/%d (n=%d);", entry.getKey(),
+                    h.percentile(50), h.percentile(90), h.percentile(99), h.count()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Счётчики и gauges контейнера по группам, по строке на группу (для debug режима)
+     */
+    public static String getCounterStats() {
+        Map<String, StringBuilder> groups = new TreeMap<>();
+        Map<String, Object> values = new TreeMap<>();
+        counters.forEach((name, value) -> values.put(name, value.get()));
+        gauges.forEach((name, value) -> values.put(name, value.get()));
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            int dot = entry.getKey().indexOf('.');
+            String group = dot > 0 ? entry.getKey().substring(0, dot) : "Other";
+            StringBuilder sb = groups.computeIfAbsent(group, g -> new StringBuilder(g).append(':'));
+            sb.append(' ').append(entry.getKey().substring(dot + 1)).append('=').append(entry.getValue());
+        }
+        return String.join("\n", groups.values());
+    }
+
+    private static void emitEmf(String operation, Request request) {
+        try {
+            List<Map<String, String>> metrics = new ArrayList<>();
+            for (String stage : request.stages.keySet()) {
+                metrics.add(Map.of("Name", stage, "Unit", "Milliseconds"));
+            }
+            for (String counter : request.counts.keySet()) {
+                metrics.add(Map.of("Name", counter, "Unit", "Count"));
+            }
+
+            Map<String, Object> directive = new LinkedHashMap<>();
+            directive.put("Namespace", NAMESPACE);
+            directive.put("Dimensions", List.of(List.of("Function", "Operation")));
+            directive.put("Metrics", metrics);
+
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("_aws", Map.of(
+                    "Timestamp", request.startedAt,
+                    "CloudWatchMetrics", List.of(directive)));
+            line.put("Function", functionName());
+            line.put("Operation", operation);
+            for (Map.Entry<String, List<Long>> stage : request.stages.entrySet()) {
+                List<Long> values = stage.getValue();
+                line.put(stage.getKey(), values.size() == 1 ? values.get(0) : values);
+            }
+            line.putAll(request.counts);
+
+            // Именно stdout, без pattern layout логгера — EMF требует чистый JSON в строке
+            System.out.println(objectMapper.writeValueAsString(line));
+        } catch (Exception e) {
+            log.warn("Failed to emit metrics: {}", e.getMessage());
+        }
+    }
+
+    private static String functionName() {
+        String name = System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+        return name != null ? name : "local";
+    }
+
+    private static class Request {
+        private final long startedAt;
+        private final Map<String, List<Long>> stages = new LinkedHashMap<>();
+        private final Map<String, Long> counts = new LinkedHashMap<>();
+
+        Request(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+}
@@ -3,24 +3,59 @@ package com.github.dimka9910.sheets.ai.services;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.dimka9910.sheets.ai.config.AppConfig;
+import com.github.dimka9910.sheets.ai.dto.ChatRequest;
 import com.github.dimka9910.sheets.ai.dto.ChatResponse;
 import com.github.dimka9910.sheets.ai.dto.SheetsRecordDTO;
 import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
-import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Публикация в очереди sheets-lambda и ответов Telegram бота.
+ *
+ * sendToSheetsLambda / sendResponse только накапливают сообщения текущего запроса (на поток —
+ * SQSHandler обрабатывает пользователей параллельно), flush() отправляет их через SendMessageBatch
+ * по 10 штук, батчи разных очередей — параллельно на SqsAsyncClient.
+ * "кофе 300, такси 500, обед 900" + ответ = 2 round trip вместо 4.
+ *
+ * Если SHEETS_QUEUE_URL — FIFO очередь (.fifo), записи идут с MessageGroupId = пользователь
+ * (sheets-lambda параллелится по пользователям, леджер каждого остаётся упорядоченным) и
+ * MessageDeduplicationId = SHA-256(запись + requestId + номер в запросе) — повтор Lambda
+ * в пределах 5 минут не создаёт дублей строк.
+ */
 @Slf4j
 public class SQSPublisher {
 
-    private final SqsClient sqsClient;
+    private static final int MAX_BATCH_SIZE = 10;  // Лимит SendMessageBatch
+
+    private final SqsAsyncClient sqsClient;
     private final ObjectMapper objectMapper;
     private final String sheetsQueueUrl;
     private final String responseQueueUrl;
 
+    // Сообщения текущего запроса: queueUrl → сообщения в порядке добавления
+    private final ThreadLocal<Map<String, List<Message>>> pending = ThreadLocal.withInitial(LinkedHashMap::new);
+
     public SQSPublisher() {
-        this.sqsClient = SqsClient.builder()
+        this.sqsClient = SqsAsyncClient.builder()
                 .region(Region.of(AppConfig.getAwsRegion()))
                 .build();
         this.objectMapper = new ObjectMapper();
@@ -38,7 +73,7 @@ public class SQSPublisher {
     }
 
     // Конструктор для тестирования
-    public SQSPublisher(SqsClient sqsClient, String sheetsQueueUrl, String responseQueueUrl) {
+    public SQSPublisher(SqsAsyncClient sqsClient, String sheetsQueueUrl, String responseQueueUrl) {
         this.sqsClient = sqsClient;
         this.objectMapper = new ObjectMapper();
         this.sheetsQueueUrl = sheetsQueueUrl;
@@ -46,48 +81,47 @@ public class SQSPublisher {
     }
 
     /**
-     * Отправляет команду в очередь google-sheets-lambda
-     * 
+     * Добавляет команду для очереди google-sheets-lambda (отправится в flush).
+     * request — источник группы и ID дедупликации для FIFO очереди
+     *
      * DRY_RUN=true — только логирование, без реальной отправки
      */
-    public void sendToSheetsLambda(SheetsRecordDTO record) {
+    public void sendToSheetsLambda(SheetsRecordDTO record, ChatRequest request) {
         try {
             String messageBody = objectMapper.writeValueAsString(record);
-            
+
             // DRY_RUN режим — только логируем, не отправляем в SQS
             if (isDryRun()) {
                 log.info("[DRY_RUN] Would send to sheets-lambda: {}", messageBody);
                 return;
             }
-            
+
             if (sheetsQueueUrl == null) {
                 log.error("Cannot send to sheets-lambda: SHEETS_QUEUE_URL is not set");
                 return;
             }
 
-            log.info("Sending to sheets-lambda: {}", messageBody);
-
-            SendMessageRequest request = SendMessageRequest.builder()
-                    .queueUrl(sheetsQueueUrl)
-                    .messageBody(messageBody)
-                    .build();
-
-            SendMessageResponse response = sqsClient.sendMessage(request);
-            log.info("Message sent to sheets-lambda, messageId: {}", response.messageId());
+            log.info("Queued for sheets-lambda: {}", messageBody);
+            if (isFifo(sheetsQueueUrl)) {
+                enqueue(sheetsQueueUrl, messageBody, groupId(request),
+                        deduplicationId(messageBody, request, queued(sheetsQueueUrl)));
+            } else {
+                enqueue(sheetsQueueUrl, messageBody, null, null);
+            }
 
         } catch (JsonProcessingException e) {
             log.error("Failed to serialize record: {}", e.getMessage(), e);
             throw new RuntimeException("Failed to serialize record", e);
         }
     }
-    
+
     private boolean isDryRun() {
         String dryRun = System.getenv("DRY_RUN");
         return "true".equalsIgnoreCase(dryRun) || "1".equals(dryRun);
     }
 
     /**
-     * Отправляет ответ в очередь для Telegram бота
+     * Добавляет ответ для очереди Telegram бота (отправится в flush)
      */
     public void sendResponse(ChatResponse response) {
         if (responseQueueUrl == null) {
@@ -97,20 +131,168 @@ public class SQSPublisher {
 
         try {
             String messageBody = objectMapper.writeValueAsString(response);
-            log.info("Sending response: {}", messageBody);
-
-            SendMessageRequest request = SendMessageRequest.builder()
-                    .queueUrl(responseQueueUrl)
-                    .messageBody(messageBody)
-                    .build();
-
-            SendMessageResponse sqsResponse = sqsClient.sendMessage(request);
-            log.info("Response sent, messageId: {}", sqsResponse.messageId());
+            log.info("Queued response: {}", messageBody);
+            enqueue(responseQueueUrl, messageBody, null, null);
 
         } catch (JsonProcessingException e) {
             log.error("Failed to serialize response: {}", e.getMessage(), e);
             throw new RuntimeException("Failed to serialize response", e);
         }
     }
-}
 
+    /**
+     * Отправляет всё накопленное в текущем запросе. Каждая очередь — ceil(N/10) вызовов
+     * SendMessageBatch, все параллельно. Записи, которые SQS не принял по своей вине,
+     * повторяются один раз; если не ушли и после этого — SdkClientException с первой ошибкой SDK
+     * в cause (временная ошибка — запрос уйдёт в retry). Отказ по вине сообщения (senderFault) — terminal.
+     * В FIFO очередь батчи уходят последовательно, чтобы не перемешать порядок.
+     */
+    public void flush() {
+        Map<String, List<Message>> messages = pending.get();
+        pending.remove();
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        RequestMetrics.time(RequestMetrics.SQS_SEND, () -> {
+            AtomicReference<Throwable> firstError = new AtomicReference<>();
+            List<Message> failed = new ArrayList<>();
+            for (Map.Entry<String, List<Message>> queue : sendAll(messages, firstError).entrySet()) {
+                if (!queue.getValue().isEmpty()) {
+                    log.warn("Retrying {} failed SQS entries for {}", queue.getValue().size(), queue.getKey());
+                    failed.addAll(sendAll(Map.of(queue.getKey(), queue.getValue()), firstError).get(queue.getKey()));
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw SdkClientException.create("Failed to send " + failed.size() + " messages to SQS", firstError.get());
+            }
+        });
+    }
+
+    /**
+     * Сбросить накопленное без отправки (запрос упал — сообщения не должны уйти в следующий)
+     */
+    public void discard() {
+        pending.remove();
+    }
+
+    private void enqueue(String queueUrl, String messageBody, String groupId, String deduplicationId) {
+        pending.get().computeIfAbsent(queueUrl, url -> new ArrayList<>())
+                .add(new Message(messageBody, groupId, deduplicationId));
+    }
+
+    private int queued(String queueUrl) {
+        List<Message> messages = pending.get().get(queueUrl);
+        return messages != null ? messages.size() : 0;
+    }
+
+    private static boolean isFifo(String queueUrl) {
+        return queueUrl.endsWith(".fifo");
+    }
+
+    private static String groupId(ChatRequest request) {
+        String user = request.getUserId() != null ? request.getUserId() : request.getUserName();
+        return user != null ? user : "unknown";
+    }
+
+    /**
+     * Одинаков для одной и той же записи при повторной обработке того же запроса.
+     * index различает одинаковые записи в одном сообщении ("кофе 300, кофе 300").
+     * Без requestId (API без ключа) — случайный: дедупликации нет, но и ложных склеек тоже
+     */
+    private static String deduplicationId(String messageBody, ChatRequest request, int index) {
+        if (request.getRequestId() == null) {
+            return UUID.randomUUID().toString();
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(messageBody.getBytes(StandardCharsets.UTF_8));
+            digest.update((request.getRequestId() + "#" + index).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Все батчи параллельно (в FIFO очередь — по очереди). Возвращает сообщения,
+     * которые не удалось отправить (по очередям); первая ошибка вызова SDK — в firstError
+     */
+    private Map<String, List<Message>> sendAll(Map<String, List<Message>> messages, AtomicReference<Throwable> firstError) {
+        Map<String, List<CompletableFuture<List<Message>>>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Message>> queue : messages.entrySet()) {
+            String queueUrl = queue.getKey();
+            List<Message> queueMessages = queue.getValue();
+            CompletableFuture<List<Message>> previous = null;
+            for (int from = 0; from < queueMessages.size(); from += MAX_BATCH_SIZE) {
+                List<Message> chunk = queueMessages.subList(from, Math.min(from + MAX_BATCH_SIZE, queueMessages.size()));
+                CompletableFuture<List<Message>> future = previous != null && isFifo(queueUrl)
+                        ? previous.thenCompose(done -> sendBatch(queueUrl, chunk, firstError))
+                        : sendBatch(queueUrl, chunk, firstError);
+                futures.computeIfAbsent(queueUrl, url -> new ArrayList<>()).add(future);
+                previous = future;
+            }
+        }
+
+        Map<String, List<Message>> failed = new LinkedHashMap<>();
+        for (Map.Entry<String, List<CompletableFuture<List<Message>>>> queue : futures.entrySet()) {
+            List<Message> queueFailed = new ArrayList<>();
+            for (CompletableFuture<List<Message>> future : queue.getValue()) {
+                queueFailed.addAll(future.join());
+            }
+            failed.put(queue.getKey(), queueFailed);
+        }
+        return failed;
+    }
+
+    private CompletableFuture<List<Message>> sendBatch(String queueUrl, List<Message> messages,
+                                                       AtomicReference<Throwable> firstError) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            entries.add(SendMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i))
+                    .messageBody(message.body())
+                    .messageGroupId(message.groupId())
+                    .messageDeduplicationId(message.deduplicationId())
+                    .build());
+        }
+        SendMessageBatchRequest request = SendMessageBatchRequest.builder()
+                .queueUrl(queueUrl)
+                .entries(entries)
+                .build();
+
+        return sqsClient.sendMessageBatch(request).handle((response, error) -> {
+            if (error != null) {
+                // Весь вызов не прошёл (сеть, throttling) — повторяем батч целиком
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                log.error("SendMessageBatch to {} failed: {}", queueUrl, cause.getMessage());
+                firstError.compareAndSet(null, cause);
+                return messages;
+            }
+            return failedMessages(queueUrl, messages, response);
+        });
+    }
+
+    private List<Message> failedMessages(String queueUrl, List<Message> messages, SendMessageBatchResponse response) {
+        log.info("Sent {} messages to {}", response.successful().size(), queueUrl);
+        List<Message> failed = new ArrayList<>();
+        for (BatchResultErrorEntry error : response.failed()) {
+            log.error("SQS entry {} rejected: {} - {} (senderFault={})",
+                    error.id(), error.code(), error.message(), error.senderFault());
+            if (Boolean.TRUE.equals(error.senderFault())) {
+                // Ошибка в самом сообщении — повтор не поможет
+                throw new IllegalStateException("SQS rejected message: " + error.code() + " - " + error.message());
+            }
+            failed.add(messages.get(Integer.parseInt(error.id())));
+        }
+        return failed;
+    }
+
+    /**
+     * Сообщение в буфере. groupId / deduplicationId — только для FIFO очередей (иначе null)
+     */
+    private record Message(String body, String groupId, String deduplicationId) {
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Инкрементально разбирает JSON ответа AI по мере прихода кусков (streaming).
+ * Как только закрывается очередной объект в массиве "commands" — отдаёт ParsedCommand в listener,
+ * не дожидаясь конца ответа.
+ *
+ * Ошибки разбора не пробрасываются: это только ранний preview,
+ * итоговый ParsedCommandList всё равно парсится из полного ответа.
+ */
+@Slf4j
+public class StreamingCommandExtractor {
+
+    private final ObjectMapper objectMapper;
+    private final Consumer<ParsedCommand> listener;
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+
+    private boolean started;          // Встретили первую '{' (до неё может быть ```json)
+    private boolean failed;
+    private int depth;                // Глубина вложенности всего документа
+    private boolean inCommands;       // Внутри массива "commands"
+    private String lastRootField;
+    private TokenBuffer current;      // Токены текущей команды
+    private int commandDepth;
+    private char pendingHighSurrogate;
+
+    public StreamingCommandExtractor(ObjectMapper objectMapper, Consumer<ParsedCommand> listener) {
+        this.objectMapper = objectMapper;
+        this.listener = listener;
+        try {
+            this.parser = objectMapper.getFactory().createNonBlockingByteArrayParser();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to create non-blocking JSON parser", e);
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /**
+     * Передаёт очередной кусок текста ответа
+     */
+    public void feed(String delta) {
+        if (failed || delta == null || delta.isEmpty()) {
+            return;
+        }
+
+        String text = delta;
+        if (pendingHighSurrogate != 0) {
+            text = pendingHighSurrogate + text;
+            pendingHighSurrogate = 0;
+        }
+        // Суррогатная пара может разорваться между кусками — дожидаемся второй половины
+        if (Character.isHighSurrogate(text.charAt(text.length() - 1))) {
+            pendingHighSurrogate = text.charAt(text.length() - 1);
+            text = text.substring(0, text.length() - 1);
+        }
+
+        if (!started) {
+            int start = text.indexOf('{');
+            if (start < 0) {
+                return;
+            }
+            started = true;
+            text = text.substring(start);
+        }
+
+        try {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            feeder.feedInput(bytes, 0, bytes.length);
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                onToken(token);
+            }
+        } catch (Exception e) {
+            // Например, хвост ``` после JSON — дальше preview не нужен
+            failed = true;
+            log.debug("Streaming JSON preview stopped: {}", e.getMessage());
+        }
+    }
+
+    private void onToken(JsonToken token) throws IOException {
+        if (current != null) {
+            current.copyCurrentEvent(parser);
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                commandDepth++;
+            } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                commandDepth--;
+                if (commandDepth == 0) {
+                    emit(current);
+                    current = null;
+                }
+            }
+            return;
+        }
+
+        switch (token) {
+            case START_OBJECT -> {
+                if (inCommands && depth == 2) {
+                    // Закрывающую '}' команды поглотит ветка захвата — depth не трогаем
+                    current = new TokenBuffer(parser, null);
+                    current.copyCurrentEvent(parser);
+                    commandDepth = 1;
+                } else {
+                    depth++;
+                }
+            }
+            case START_ARRAY -> {
+                if (depth == 1 && "commands".equals(lastRootField)) {
+                    inCommands = true;
+                }
+                depth++;
+            }
+            case END_OBJECT, END_ARRAY -> {
+                depth--;
+                if (depth == 1) {
+                    inCommands = false;
+                }
+            }
+            case FIELD_NAME -> {
+                if (depth == 1) {
+                    lastRootField = parser.currentName();
+                }
+            }
+            default -> {
+                // Скалярные значения верхнего уровня (understood, clarification...) — не нужны
+            }
+        }
+    }
+
+    private void emit(TokenBuffer buffer) {
+        ParsedCommand command;
+        try {
+            command = objectMapper.readValue(buffer.asParser(objectMapper), ParsedCommand.class);
+        } catch (Exception e) {
+            log.debug("Skipping streamed command preview: {}", e.getMessage());
+            return;
+        }
+        try {
+            listener.accept(command);
+        } catch (Exception e) {
+            log.warn("Streamed command listener failed: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import com.github.dimka9910.sheets.ai.dto.ParsedCommand;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Видимый прогресс в Telegram, пока идёт обработка (OpenAI — 3–10 сек):
+ * сразу "печатает...", обновление каждые ~4 сек (индикатор гаснет через 5),
+ * а если обработка затянулась — заглушка, которую deliver() заменяет итоговым ответом
+ * через editMessageText (без второго сообщения в чате).
+ *
+ * Streaming: первая распознанная AI команда сразу уходит заглушкой-preview ("⏳ 300 EUR · FOOD"),
+ * не дожидаясь таймера и конца ответа — итоговый ответ её так же заменяет.
+ *
+ * Время до первой видимой реакции (от отправки сообщения пользователем) — firstFeedbackMillis().
+ */
+@Slf4j
+public class TelegramProgress implements AutoCloseable {
+
+    private static final String TYPING = "typing";
+    private static final long TYPING_REFRESH_MS = 4000;
+    private static final long PLACEHOLDER_AFTER_MS = 5000;
+    private static final String PLACEHOLDER_TEXT = "⏳";  // Без текста — язык ответа выбирает AI
+
+    // Таймеры всех запросов контейнера — одного daemon потока достаточно, вызовы асинхронные
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "telegram-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TelegramSender telegramSender;
+    private final String chatId;
+    private final long receivedAt;
+    private final AtomicLong firstFeedbackAt = new AtomicLong();
+
+    private ScheduledFuture<?> typingTask;
+    private ScheduledFuture<?> placeholderTask;
+    // Под lock: заглушка не должна уйти после итогового ответа
+    private CompletableFuture<Long> placeholder;
+    private boolean closed;
+    private boolean delivered;
+
+    /**
+     * receivedAt — когда пользователь отправил сообщение (epoch millis)
+     */
+    public TelegramProgress(TelegramSender telegramSender, String chatId, long receivedAt) {
+        this.telegramSender = telegramSender;
+        this.chatId = chatId;
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * Показать "печатает..." сейчас и запустить таймеры
+     */
+    public void start() {
+        sendTyping();
+        typingTask = scheduler.scheduleAtFixedRate(this::sendTyping,
+                TYPING_REFRESH_MS, TYPING_REFRESH_MS, TimeUnit.MILLISECONDS);
+        placeholderTask = scheduler.schedule(() -> postPlaceholder(PLACEHOLDER_TEXT),
+                PLACEHOLDER_AFTER_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Первая команда из streaming ответа AI: заглушка уходит сразу, с кратким preview команды.
+     * Если заглушка уже отправлена — ничего не делаем (лишняя правка только съест лимит Telegram)
+     */
+    public void preview(ParsedCommand command) {
+        postPlaceholder(PLACEHOLDER_TEXT + " " + previewOf(command));
+    }
+
+    /**
+     * Итоговый ответ: правка заглушки, если она уже отправлена, иначе обычное сообщение.
+     * Если правка не удалась — тоже обычное сообщение
+     */
+    public CompletableFuture<Boolean> deliver(String text) {
+        CompletableFuture<Long> posted;
+        synchronized (this) {
+            delivered = true;
+            posted = placeholder;
+        }
+        close();
+        CompletableFuture<Boolean> delivered = posted == null
+                ? telegramSender.sendMessageAsync(chatId, text)
+                : posted.thenCompose(messageId -> messageId == null
+                        ? telegramSender.sendMessageAsync(chatId, text)
+                        : telegramSender.editMessageTextAsync(chatId, messageId, text)
+                                .thenCompose(edited -> edited
+                                        ? CompletableFuture.completedFuture(true)
+                                        : telegramSender.sendMessageAsync(chatId, text)));
+        return delivered.whenComplete((ok, e) -> {
+            if (Boolean.TRUE.equals(ok)) {
+                feedback();
+            }
+        });
+    }
+
+    /**
+     * Миллисекунды от отправки сообщения пользователем до первой видимой реакции бота, -1 если её не было
+     */
+    public long firstFeedbackMillis() {
+        long at = firstFeedbackAt.get();
+        return at > 0 ? at - receivedAt : -1;
+    }
+
+    /**
+     * Остановить таймеры (заглушка, если ещё не отправлена, уже не уйдёт).
+     * Без deliver() (обработка упала — повтор или ответ об ошибке) отправленная заглушка удаляется:
+     * иначе "⏳" висел бы в чате навсегда, а повтор добавил бы вторую
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Long> orphaned;
+        synchronized (this) {
+            orphaned = !closed && !delivered ? placeholder : null;
+            closed = true;
+        }
+        if (orphaned != null) {
+            orphaned.thenAccept(messageId -> {
+                if (messageId != null) {
+                    telegramSender.deleteMessageAsync(chatId, messageId);
+                }
+            });
+        }
+        if (typingTask != null) {
+            typingTask.cancel(false);
+        }
+        if (placeholderTask != null) {
+            placeholderTask.cancel(false);
+        }
+    }
+
+    private synchronized void postPlaceholder(String text) {
+        if (closed || placeholder != null) {
+            return;
+        }
+        placeholder = telegramSender.sendMessageForIdAsync(chatId, text)
+                .whenComplete((messageId, e) -> {
+                    if (messageId != null) {
+                        feedback();
+                        log.info("Placeholder {} posted to chat {}", messageId, chatId);
+                    }
+                });
+    }
+
+    /**
+     * Без слов — язык ответа выбирает AI: сумма, валюта, категория/счёт
+     */
+    private static String previewOf(ParsedCommand command) {
+        List<String> parts = new ArrayList<>();
+        if (command.getAmount() != null) {
+            double amount = command.getAmount();
+            String value = amount == Math.rint(amount) ? String.valueOf((long) amount) : String.valueOf(amount);
+            parts.add(command.getCurrency() != null ? value + " " + command.getCurrency() : value);
+        }
+        if (command.getFundName() != null) {
+            parts.add(command.getFundName());
+        } else if (command.getAccountName() != null) {
+            parts.add(command.getAccountName());
+        }
+        return String.join(" · ", parts);
+    }
+
+    private void sendTyping() {
+        telegramSender.sendChatActionAsync(chatId, TYPING).thenAccept(ok -> {
+            if (ok) {
+                feedback();
+            }
+        });
+    }
+
+    private void feedback() {
+        firstFeedbackAt.compareAndSet(0, System.currentTimeMillis());
+    }
+}
@@ -1,6 +1,12 @@
 package com.github.dimka9910.sheets.ai.services;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.BooleanNode;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.URI;
@@ -8,75 +14,246 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Отправляет сообщения напрямую в Telegram API.
  * Используется для асинхронной архитектуры — AI Parser сам отправляет ответы.
+ *
+ * Отправка асинхронная (CompletableFuture) и учитывает лимиты Telegram: общий token bucket
+ * на бота (~30 сообщений/сек) и bucket на чат (~1 сообщение/сек с небольшим burst).
+ * Лимиты общие для контейнера — все экземпляры и потоки делят одни и те же bucket.
+ * На 429 ждём parameters.retry_after и повторяем (чат при этом "на паузе" и для следующих сообщений).
+ *
+ * Для индикации прогресса: sendChatAction (typing, вне лимитов сообщений), отправка с message_id
+ * и editMessageText — заглушка заменяется итоговым ответом.
  */
 @Slf4j
 public class TelegramSender {
 
     private static final String TELEGRAM_API = "https://api.telegram.org/bot";
-    
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MAX_RETRY_AFTER_SECONDS = 30;  // Дольше — ответ уже неактуален
+    private static final int MAX_CHAT_BUCKETS = 10000;
+
+    private static final TokenBucket globalBucket = new TokenBucket(30, 30);
+    private static final Map<String, TokenBucket> chatBuckets = new ConcurrentHashMap<>();
+
     private final String botToken;
     private final HttpClient httpClient;
-    private final ObjectMapper objectMapper;
+    private final ObjectWriter payloadWriter;
+    private final ObjectReader responseReader;
 
     public TelegramSender() {
-        this.botToken = System.getenv("TELEGRAM_BOT_TOKEN");
+        this(System.getenv("TELEGRAM_BOT_TOKEN"));
+    }
+
+    // Конструктор для тестирования
+    public TelegramSender(String botToken) {
+        this.botToken = botToken;
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofSeconds(10))
                 .build();
-        this.objectMapper = new ObjectMapper();
-        
+        ObjectMapper objectMapper = new ObjectMapper();
+        this.payloadWriter = objectMapper.writerFor(Payload.class);
+        this.responseReader = objectMapper.readerFor(JsonNode.class);
+
         if (botToken == null || botToken.isBlank()) {
             log.warn("TELEGRAM_BOT_TOKEN not set - Telegram sending disabled");
         }
     }
 
     /**
-     * Отправляет сообщение в Telegram чат
+     * Отправляет сообщение в Telegram чат и ждёт результата
      */
     public void sendMessage(String chatId, String text) {
+        sendMessageAsync(chatId, text).join();
+    }
+
+    /**
+     * Отправляет сообщение в Telegram чат, не блокируя поток.
+     * Future завершается true, если сообщение доставлено; ошибки логируются и дают false
+     */
+    public CompletableFuture<Boolean> sendMessageAsync(String chatId, String text) {
+        return sendMessageForIdAsync(chatId, text).thenApply(messageId -> messageId != null);
+    }
+
+    /**
+     * Как sendMessageAsync, но возвращает message_id отправленного сообщения (null при ошибке) —
+     * для последующего editMessageText
+     */
+    public CompletableFuture<Long> sendMessageForIdAsync(String chatId, String text) {
+        return call("sendMessage", chatId, new Payload(chatId, null, text, null), true)
+                .thenApply(result -> result != null && result.path("message_id").isNumber()
+                        ? result.path("message_id").asLong() : null);
+    }
+
+    /**
+     * Заменяет текст ранее отправленного сообщения
+     */
+    public CompletableFuture<Boolean> editMessageTextAsync(String chatId, long messageId, String text) {
+        return call("editMessageText", chatId, new Payload(chatId, messageId, text, null), true)
+                .thenApply(result -> result != null);
+    }
+
+    /**
+     * Удаляет ранее отправленное сообщение
+     */
+    public CompletableFuture<Boolean> deleteMessageAsync(String chatId, long messageId) {
+        return call("deleteMessage", chatId, new Payload(chatId, messageId, null, null), true)
+                .thenApply(result -> result != null);
+    }
+
+    /**
+     * Индикатор "печатает..." (гаснет через ~5 сек или при первом сообщении бота).
+     * Не проходит через bucket — не должен задерживать сами ответы
+     */
+    public CompletableFuture<Boolean> sendChatActionAsync(String chatId, String action) {
+        return call("sendChatAction", chatId, new Payload(chatId, null, null, action), false)
+                .thenApply(result -> result != null);
+    }
+
+    /**
+     * Проверяет настроен ли Telegram токен
+     */
+    public boolean isConfigured() {
+        return botToken != null && !botToken.isBlank();
+    }
+
+    /**
+     * Вызов Bot API. Future завершается полем result ответа или null при ошибке (никогда исключением)
+     */
+    private CompletableFuture<JsonNode> call(String method, String chatId, Payload payload, boolean throttle) {
         if (botToken == null || botToken.isBlank()) {
             log.warn("Cannot send to Telegram: bot token not configured");
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
         try {
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("chat_id", chatId);
-            payload.put("text", text);
-
-            String jsonPayload = objectMapper.writeValueAsString(payload);
-
             HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(TELEGRAM_API + botToken + "/sendMessage"))
+                    .uri(URI.create(TELEGRAM_API + botToken + "/" + method))
                     .header("Content-Type", "application/json")
-                    .timeout(Duration.ofSeconds(30))
-                    .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
+                    .timeout(REQUEST_TIMEOUT)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(payloadWriter.writeValueAsBytes(payload)))
                     .build();
+            return send(method, chatId, request, throttle, 1);
+        } catch (Exception e) {
+            log.error("Error calling Telegram {}: {}", method, e.getMessage(), e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            
-            if (response.statusCode() == 200) {
-                log.info("Telegram message sent to chat {}", chatId);
-            } else {
-                log.error("Telegram API error: {} - {}", response.statusCode(), response.body());
-            }
+    private CompletableFuture<JsonNode> send(String method, String chatId, HttpRequest request,
+                                             boolean throttle, int attempt) {
+        TokenBucket chatBucket = chatBucket(chatId);
+        long waitMillis = throttle ? Math.max(globalBucket.reserve(), chatBucket.reserve()) : 0;
+        if (waitMillis > 0) {
+            RequestMetrics.count("Telegram.Throttled");
+            log.info("Telegram rate limit: delaying {} to chat {} by {} ms", method, chatId, waitMillis);
+        }
+
+        return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(waitMillis, TimeUnit.MILLISECONDS))
+                .thenCompose(ignored -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()))
+                .thenCompose(response -> {
+                    if (response.statusCode() == 200) {
+                        log.info("Telegram {} done for chat {}", method, chatId);
+                        return CompletableFuture.completedFuture(result(response.body()));
+                    }
+                    if (response.statusCode() == 429) {
+                        RequestMetrics.count("Telegram.RateLimited");
+                        long retryAfter = retryAfterSeconds(response.body());
+                        if (attempt < MAX_ATTEMPTS && retryAfter <= MAX_RETRY_AFTER_SECONDS) {
+                            log.warn("Telegram 429 for chat {}, retrying after {} s", chatId, retryAfter);
+                            chatBucket.pause(TimeUnit.SECONDS.toMillis(retryAfter));
+                            return send(method, chatId, request, true, attempt + 1);
+                        }
+                    }
+                    log.error("Telegram API error on {}: {} - {}", method, response.statusCode(), response.body());
+                    return CompletableFuture.<JsonNode>completedFuture(null);
+                })
+                .exceptionally(e -> {
+                    log.error("Error calling Telegram {}: {}", method, e.getMessage(), e);
+                    return null;
+                });
+    }
+
+    /**
+     * Поле result ответа Bot API (для sendChatAction это просто true)
+     */
+    private JsonNode result(String body) {
+        try {
+            return responseReader.<JsonNode>readValue(body).path("result");
+        } catch (Exception e) {
+            return BooleanNode.TRUE;  // 200 — вызов прошёл, даже если тело не разобрали
+        }
+    }
 
+    private long retryAfterSeconds(String body) {
+        try {
+            JsonNode retryAfter = responseReader.<JsonNode>readValue(body).path("parameters").path("retry_after");
+            return retryAfter.isNumber() ? retryAfter.asLong() : 1;
         } catch (Exception e) {
-            log.error("Error sending message to Telegram: {}", e.getMessage(), e);
+            return 1;
+        }
+    }
+
+    private static TokenBucket chatBucket(String chatId) {
+        if (chatBuckets.size() > MAX_CHAT_BUCKETS) {
+            chatBuckets.clear();  // Полные bucket ничего не помнят — сброс безопасен
         }
+        return chatBuckets.computeIfAbsent(String.valueOf(chatId), id -> new TokenBucket(1, 3));
     }
-    
+
     /**
-     * Проверяет настроен ли Telegram токен
+     * Тело запроса sendMessage / editMessageText / deleteMessage / sendChatAction (null поля не пишутся)
      */
-    public boolean isConfigured() {
-        return botToken != null && !botToken.isBlank();
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private record Payload(@JsonProperty("chat_id") String chatId,
+                           @JsonProperty("message_id") Long messageId,
+                           @JsonProperty("text") String text,
+                           @JsonProperty("action") String action) {
     }
-}
 
+    /**
+     * Token bucket с резервированием: reserve() всегда забирает токен (возможно, в долг)
+     * и возвращает, сколько ждать до отправки — очередь сообщений сохраняет порядок
+     */
+    private static class TokenBucket {
+
+        private final double tokensPerMilli;
+        private final double capacity;
+        private double tokens;
+        private long updatedAt;
+
+        TokenBucket(double tokensPerSecond, double capacity) {
+            this.tokensPerMilli = tokensPerSecond / 1000;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.updatedAt = System.currentTimeMillis();
+        }
+
+        synchronized long reserve() {
+            refill();
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerMilli);
+        }
+
+        /**
+         * Ни одного токена ближайшие millis (Telegram попросил подождать)
+         */
+        synchronized void pause(long millis) {
+            refill();
+            tokens = Math.min(tokens, 1 - millis * tokensPerMilli);  // Следующий reserve() ждёт ровно millis
+        }
+
+        private void refill() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - updatedAt) * tokensPerMilli);
+            updatedAt = now;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.dimka9910.sheets.ai.services;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Локальный индекс по триграммам слов: насколько строки из списка похожи на слова сообщения.
+ * Слова нормализуются (регистр, ё→е) и транслитерируются — "тинькофф" находит "Tinkoff",
+ * "продукты" находит "продукт", опечатки тоже дают высокий score.
+ */
+public class TrigramIndex {
+
+    private static final int MIN_WORD_LENGTH = 3;
+
+    private final List<String> entries;
+    private final List<List<Set<String>>> entryWordTrigrams = new ArrayList<>();
+
+    public TrigramIndex(List<String> entries) {
+        this.entries = entries;
+        for (String entry : entries) {
+            List<Set<String>> words = new ArrayList<>();
+            for (String word : words(entry)) {
+                words.add(trigrams(word));
+            }
+            entryWordTrigrams.add(words);
+        }
+    }
+
+    /**
+     * Score каждой строки индекса против сообщения: лучший Dice коэффициент
+     * по парам (слово сообщения, слово строки). 1.0 — точное совпадение слова.
+     */
+    public double[] score(String message) {
+        List<Set<String>> messageWords = new ArrayList<>();
+        for (String word : words(message)) {
+            if (word.length() >= MIN_WORD_LENGTH) {
+                messageWords.add(trigrams(word));
+            }
+        }
+
+        double[] scores = new double[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            double best = 0;
+            for (Set<String> entryWord : entryWordTrigrams.get(i)) {
+                for (Set<String> messageWord : messageWords) {
+                    best = Math.max(best, dice(entryWord, messageWord));
+                }
+            }
+            scores[i] = best;
+        }
+        return scores;
+    }
+
+    /**
+     * Слова строки: нормализованные и транслитерированные, без чисел и знаков
+     */
+    public static List<String> words(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        String normalized = text.toLowerCase(Locale.ROOT).replace('ё', 'е');
+        for (String word : normalized.split("[^\\p{L}]+")) {
+            if (!word.isEmpty()) {
+                result.add(LocalCommandParser.transliterate(word));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Триграммы слова с границами: "кофе" → " ko", "kof", "ofe", "fe "
+     */
+    public static Set<String> trigrams(String word) {
+        String padded = " " + word + " ";
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            result.add(padded.substring(i, i + 3));
+        }
+        return result;
+    }
+
+    public static double dice(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+        int common = 0;
+        for (String gram : a) {
+            if (b.contains(gram)) {
+                common++;
+            }
+        }
+        return 2.0 * common / (a.size() + b.size());
+    }
+}
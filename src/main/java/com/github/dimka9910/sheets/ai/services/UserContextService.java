@@ -1,28 +1,91 @@
 package com.github.dimka9910.sheets.ai.services;
 
 import com.github.dimka9910.sheets.ai.dto.UserContext;
+import com.github.dimka9910.sheets.ai.dto.UserSession;
 import com.github.dimka9910.sheets.ai.repository.UserContextRepository;
+import com.github.dimka9910.sheets.ai.repository.UserSessionRepository;
 import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Сервис для управления контекстом пользователей.
  * Читает/пишет в DynamoDB через UserContextRepository.
+ *
+ * Read-through кэш в памяти warm контейнера: снимок атрибутов последнего прочитанного/сохранённого
+ * контекста. Перед выдачей из кэша сверяется version (projection read — без истории, pending и
+ * операций в ответе); не совпала — полное чтение. saveContext обновляет кэш (write-through).
+ * Каждый getContext возвращает новый экземпляр — вызывающие свободно его меняют.
+ * Кэшируемый снимок — тот же, по которому репозиторий вычисляет изменённые поля при записи.
+ *
+ * Профили linked users (только то, что нужно промпту) читаются одним BatchGetItem с projection
+ * и кэшируются на LINKED_PROFILE_TTL_MS — счета партнёра меняются редко.
+ *
+ * Unit of work запроса (begin() → flush() / discard(), на поток — как SQSPublisher): внутри него
+ * getContext возвращает один и тот же экземпляр на userId (одно чтение за запрос), а saveContext
+ * только помечает контекст — flush() пишет каждый помеченный один раз (без изменений — без записи).
+ * Вне unit of work (API) чтение и запись — сразу.
+ *
+ * Сессия (история, pending, операции — UserSession) лежит в отдельной таблице с TTL: кэшируется
+ * только профиль, сессия читается каждый раз (параллельно с профилем) и пишется, только если
+ * изменилась. Контексты старого формата (сессия в item профиля) переносятся при первой записи.
  */
 @Slf4j
 public class UserContextService {
 
+    private static final int MAX_CACHED_CONTEXTS = 500;
+    private static final long LINKED_PROFILE_TTL_MS = 60000;
+
+    // Фоновые чтения параллельно с контекстом самого пользователя (сессия, профили linked users)
+    private static final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "context-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final UserContextRepository repository;
+    private final UserSessionRepository sessionRepository;
+    private final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<>();
+
+    private final Map<String, Map<String, AttributeValue>> cache = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, AttributeValue>> eldest) {
+            return size() > MAX_CACHED_CONTEXTS;
+        }
+    };
+
+    private final Map<String, LinkedProfile> linkedProfiles = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LinkedProfile> eldest) {
+            return size() > MAX_CACHED_CONTEXTS;
+        }
+    };
 
     public UserContextService() {
         this.repository = new UserContextRepository();
+        this.sessionRepository = new UserSessionRepository();
     }
 
     // Конструктор для тестирования
-    public UserContextService(UserContextRepository repository) {
+    public UserContextService(UserContextRepository repository, UserSessionRepository sessionRepository) {
         this.repository = repository;
+        this.sessionRepository = sessionRepository;
     }
 
     /**
@@ -32,10 +95,55 @@ public class UserContextService {
     public UserContext getContext(String userId) {
         log.info("Getting context for userId: {}", userId);
         
+        UnitOfWork unit = unitOfWork.get();
+        if (unit != null && unit.loaded.containsKey(userId)) {
+            return unit.loaded.get(userId);
+        }
+        
+        UserContext context = loadContext(userId, unit);
+        if (unit != null) {
+            unit.loaded.put(userId, context);
+        }
+        return context;
+    }
+
+    private UserContext loadContext(String userId, UnitOfWork unit) {
+        // Сессия читается параллельно с профилем (проверкой версии или полным чтением)
+        CompletableFuture<Optional<UserSession>> session =
+                CompletableFuture.supplyAsync(() -> sessionRepository.get(userId), prefetchExecutor);
+        count(unit, u -> u.sessionGets);
+        
+        UserContext context = loadProfile(userId, unit);
+        Optional<UserSession> stored;
+        try {
+            stored = session.join();
+        } catch (CompletionException e) {
+            // Ошибка чтения сессии — наружу как есть (временная → retry сообщения)
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+        if (stored.isPresent()) {
+            stored.get().applyTo(context);
+            context.setPersistedSession(sessionRepository.toItem(UserSession.from(context)));
+        } else if (UserSessionRepository.hasLegacySession(context.getPersistedState())) {
+            // Старый формат: сессия в item профиля — будет перенесена при первой записи
+            log.info("Migrating legacy session of userId {} on next save", userId);
+            sessionRepository.fromLegacyItem(context.getPersistedState()).applyTo(context);
+        }
+        return context;
+    }
+
+    private UserContext loadProfile(String userId, UnitOfWork unit) {
+        UserContext cached = getCached(userId, unit);
+        if (cached != null) {
+            return cached;
+        }
+        
         Optional<UserContext> contextOpt = repository.getByUserId(userId);
+        count(unit, u -> u.gets);
         
         if (contextOpt.isPresent()) {
             log.debug("Found existing context for userId: {}", userId);
+            remember(contextOpt.get());
             return contextOpt.get();
         }
         
@@ -55,20 +163,222 @@ public class UserContextService {
     }
 
     /**
-     * Сохранить контекст пользователя
+     * Сохранить контекст пользователя (в unit of work — при flush())
      */
     public void saveContext(UserContext context) {
+        UnitOfWork unit = unitOfWork.get();
+        if (unit != null) {
+            log.debug("Deferring save of context for userId: {}", context.getUserId());
+            unit.loaded.put(context.getUserId(), context);
+            unit.dirty.add(context.getUserId());
+            return;
+        }
+        write(context, null);
+    }
+
+    /**
+     * Начать unit of work запроса в текущем потоке
+     */
+    public void begin() {
+        unitOfWork.set(new UnitOfWork());
+    }
+
+    /**
+     * Записать контексты, для которых вызывали saveContext, и завершить unit of work
+     */
+    public void flush() {
+        UnitOfWork unit = unitOfWork.get();
+        if (unit == null) {
+            return;
+        }
+        try {
+            for (String userId : unit.dirty) {
+                write(unit.loaded.get(userId), unit);
+            }
+            unit.dirty.clear();
+        } finally {
+            log.info("Context unit of work: {}", unit.summary());
+            unitOfWork.remove();
+        }
+    }
+
+    /**
+     * Завершить unit of work без записи (ошибка обработки)
+     */
+    public void discard() {
+        unitOfWork.remove();
+    }
+
+    /**
+     * Обращения к DynamoDB в текущем unit of work (для debug режима), null вне его
+     */
+    public String getRequestStats() {
+        UnitOfWork unit = unitOfWork.get();
+        return unit != null ? unit.summary() : null;
+    }
+
+    /**
+     * Сначала сессия, потом профиль: профиль старого формата теряет сессионные атрибуты
+     * только после того, как сессия сохранена
+     */
+    private void write(UserContext context, UnitOfWork unit) {
         log.info("Saving context for userId: {}", context.getUserId());
-        repository.save(context);
+        RequestMetrics.time(RequestMetrics.CONTEXT_SAVE, () -> {
+            count(unit, saveSession(context) ? u -> u.writes : u -> u.skippedWrites);
+            count(unit, repository.save(context) ? u -> u.writes : u -> u.skippedWrites);
+        });
+        remember(context);
+    }
+
+    /**
+     * Записать сессию, если она изменилась с чтения/сохранения. false — записи не было
+     */
+    private boolean saveSession(UserContext context) {
+        UserSession session = UserSession.from(context);
+        Map<String, AttributeValue> item = sessionRepository.toItem(session);
+        if (item.equals(context.getPersistedSession())) {
+            return false;
+        }
+        sessionRepository.save(session);
+        context.setPersistedSession(item);
+        return true;
+    }
+
+    /**
+     * Профили linked users (userId, имена, счета, фонды, дефолты) — из кэша или одним BatchGetItem.
+     * Результат по userId, каждый профиль — новый экземпляр; отсутствующих пользователей нет
+     */
+    public Map<String, UserContext> getLinkedProfiles(Collection<String> userIds) {
+        return getLinkedProfiles(userIds, unitOfWork.get());
+    }
+
+    private Map<String, UserContext> getLinkedProfiles(Collection<String> userIds, UnitOfWork unit) {
+        Map<String, UserContext> result = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (linkedProfiles) {
+            for (String userId : userIds) {
+                LinkedProfile profile = linkedProfiles.get(userId);
+                if (profile != null && now - profile.loadedAt() < LINKED_PROFILE_TTL_MS) {
+                    result.put(userId, repository.fromItem(profile.item()));
+                } else if (!missing.contains(userId)) {
+                    missing.add(userId);
+                }
+            }
+        }
+        RequestMetrics.count("LinkedUsers.CacheHits", result.size());
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        Map<String, Map<String, AttributeValue>> loaded = repository.batchGetProfiles(missing);
+        count(unit, u -> u.batchGets);
+        RequestMetrics.count("LinkedUsers.Loaded", loaded.size());
+        synchronized (linkedProfiles) {
+            for (Map.Entry<String, Map<String, AttributeValue>> entry : loaded.entrySet()) {
+                linkedProfiles.put(entry.getKey(), new LinkedProfile(entry.getValue(), now));
+            }
+        }
+        for (String userId : missing) {
+            Map<String, AttributeValue> item = loaded.get(userId);
+            if (item != null) {
+                result.put(userId, repository.fromItem(item));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Начать загрузку профилей linked users, не дожидаясь контекста самого пользователя:
+     * список linked users берётся из последнего снимка в кэше (меняется редко).
+     * Пользователя нет в кэше — пустой результат, загрузка пойдёт после контекста
+     */
+    public CompletableFuture<Map<String, UserContext>> prefetchLinkedProfiles(String userId,
+                                                                             Function<String, String> idOf) {
+        Map<String, AttributeValue> item;
+        synchronized (cache) {
+            item = cache.get(userId);
+        }
+        AttributeValue linkedUsers = item != null ? item.get("linkedUsers") : null;
+        if (linkedUsers == null || !linkedUsers.hasL() || linkedUsers.l().isEmpty()) {
+            return CompletableFuture.completedFuture(Map.of());
+        }
+
+        List<String> ids = new ArrayList<>();
+        for (AttributeValue entry : linkedUsers.l()) {
+            String id = idOf.apply(entry.s());
+            if (id != null && !id.equals(userId)) {
+                ids.add(id);
+            }
+        }
+        UnitOfWork unit = unitOfWork.get();  // Счётчики запроса — из другого потока
+        return CompletableFuture.supplyAsync(() -> getLinkedProfiles(ids, unit), prefetchExecutor)
+                .exceptionally(e -> {
+                    log.warn("Failed to prefetch linked profiles for {}: {}", userId, e.getMessage());
+                    return Map.of();
+                });
     }
 
     /**
-     * Добавить кастомную инструкцию
+     * Контекст из кэша, если его версия совпадает с DynamoDB, иначе null
+     */
+    private UserContext getCached(String userId, UnitOfWork unit) {
+        Map<String, AttributeValue> item;
+        synchronized (cache) {
+            item = cache.get(userId);
+        }
+        if (item == null) {
+            RequestMetrics.count("ContextCache.Misses");
+            return null;
+        }
+
+        AttributeValue cachedVersion = item.get("version");
+        Optional<Long> currentVersion = repository.getVersion(userId);
+        count(unit, u -> u.versionChecks);
+        if (currentVersion.isPresent() && cachedVersion != null
+                && Objects.equals(cachedVersion.n(), String.valueOf(currentVersion.get()))) {
+            RequestMetrics.count("ContextCache.Hits");
+            return repository.fromItem(item);
+        }
+
+        log.info("Cached context for userId {} is stale, reading full item", userId);
+        RequestMetrics.count("ContextCache.Stale");
+        synchronized (cache) {
+            cache.remove(userId);
+        }
+        return null;
+    }
+
+    /**
+     * Запомнить снимок — тот же, что у контекста для dirty tracking (только записи с версией —
+     * без неё свежесть не проверить)
+     */
+    private void remember(UserContext context) {
+        if (context.getUserId() == null || context.getVersion() == null || context.getPersistedState() == null) {
+            forget(context.getUserId());
+            return;
+        }
+        synchronized (cache) {
+            cache.put(context.getUserId(), context.getPersistedState());
+        }
+    }
+
+    /**
+     * Убрать снимок из кэша (item изменён точечным UpdateItem — следующее чтение полное)
+     */
+    private void forget(String userId) {
+        synchronized (cache) {
+            cache.remove(userId);
+        }
+    }
+
+    /**
+     * Добавить кастомную инструкцию (list_append без чтения контекста)
      */
     public void addInstruction(String userId, String instruction) {
-        UserContext context = getContext(userId);
-        context.addInstruction(instruction);
-        saveContext(context);
+        RequestMetrics.time(RequestMetrics.CONTEXT_SAVE,
+                () -> repository.appendToList(userId, "customInstructions", instruction, false));
+        forget(userId);
         log.info("Added instruction for user {}: {}", userId, instruction);
     }
 
@@ -76,9 +386,12 @@ public class UserContextService {
      * Удалить инструкцию по индексу
      */
     public void removeInstruction(String userId, int index) {
-        UserContext context = getContext(userId);
-        context.removeInstruction(index);
-        saveContext(context);
+        if (index < 0) {
+            return;
+        }
+        RequestMetrics.time(RequestMetrics.CONTEXT_SAVE,
+                () -> repository.removeListElement(userId, "customInstructions", index));
+        forget(userId);
         log.info("Removed instruction {} for user {}", index, userId);
     }
 
@@ -86,49 +399,62 @@ public class UserContextService {
      * Установить валюту по умолчанию
      */
     public void setDefaultCurrency(String userId, String currency) {
-        UserContext context = getContext(userId);
-        context.setDefaultCurrency(currency);
-        saveContext(context);
-        log.info("Set default currency for user {}: {}", userId, currency);
+        updateDefaults(userId, currency, null, null);
     }
 
     /**
      * Установить счёт по умолчанию
      */
     public void setDefaultAccount(String userId, String account) {
-        UserContext context = getContext(userId);
-        context.setDefaultAccount(account);
-        saveContext(context);
-        log.info("Set default account for user {}: {}", userId, account);
+        updateDefaults(userId, null, account, null);
     }
 
     /**
      * Установить дефолтный фонд
      */
     public void setDefaultFund(String userId, String fund) {
-        UserContext context = getContext(userId);
-        context.setDefaultFund(fund);
-        saveContext(context);
-        log.info("Set default fund for user {}: {}", userId, fund);
+        updateDefaults(userId, null, null, fund);
+    }
+
+    /**
+     * Установить дефолтные значения одной записью без чтения контекста (null — не менять)
+     */
+    public void updateDefaults(String userId, String currency, String account, String fund) {
+        Map<String, AttributeValue> values = new LinkedHashMap<>();
+        if (currency != null) {
+            values.put("defaultCurrency", AttributeValue.fromS(currency));
+        }
+        if (account != null) {
+            values.put("defaultAccount", AttributeValue.fromS(account));
+        }
+        if (fund != null) {
+            values.put("defaultFund", AttributeValue.fromS(fund));
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        RequestMetrics.time(RequestMetrics.CONTEXT_SAVE, () -> repository.updateAttributes(userId, values));
+        forget(userId);
+        log.info("Set defaults for user {}: {}", userId, values.keySet());
     }
 
     /**
-     * Добавить счёт
+     * Добавить счёт (если такого ещё нет)
      */
     public void addAccount(String userId, String account) {
-        UserContext context = getContext(userId);
-        context.addAccount(account);
-        saveContext(context);
+        RequestMetrics.time(RequestMetrics.CONTEXT_SAVE,
+                () -> repository.appendToList(userId, "accounts", account, true));
+        forget(userId);
         log.info("Added account for user {}: {}", userId, account);
     }
 
     /**
-     * Добавить фонд
+     * Добавить фонд (если такого ещё нет)
      */
     public void addFund(String userId, String fund) {
-        UserContext context = getContext(userId);
-        context.addFund(fund);
-        saveContext(context);
+        RequestMetrics.time(RequestMetrics.CONTEXT_SAVE,
+                () -> repository.appendToList(userId, "funds", fund, true));
+        forget(userId);
         log.info("Added fund for user {}: {}", userId, fund);
     }
 
@@ -136,9 +462,9 @@ public class UserContextService {
      * Очистить все кастомные инструкции
      */
     public void clearInstructions(String userId) {
-        UserContext context = getContext(userId);
-        context.clearInstructions();
-        saveContext(context);
+        RequestMetrics.time(RequestMetrics.CONTEXT_SAVE, () -> repository.updateAttributes(userId,
+                Map.of("customInstructions", AttributeValue.fromL(List.of()))));
+        forget(userId);
         log.info("Cleared instructions for user {}", userId);
     }
 
@@ -146,9 +472,9 @@ public class UserContextService {
      * Привязать Telegram ID к пользователю
      */
     public void linkTelegram(String userId, String telegramId) {
-        UserContext context = getContext(userId);
-        context.setTelegramId(telegramId);
-        saveContext(context);
+        RequestMetrics.time(RequestMetrics.CONTEXT_SAVE, () -> repository.updateAttributes(userId,
+                Map.of("telegramId", AttributeValue.fromS(telegramId))));
+        forget(userId);
         log.info("Linked telegramId {} to user {}", telegramId, userId);
     }
 
@@ -157,6 +483,14 @@ public class UserContextService {
      */
     public void deleteUser(String userId) {
         repository.delete(userId);
+        sessionRepository.delete(userId);
+        forget(userId);
+        UnitOfWork unit = unitOfWork.get();
+        if (unit != null) {
+            unit.loaded.remove(userId);
+            unit.dirty.remove(userId);
+            unit.deletes.addAndGet(2);  // Профиль и сессия
+        }
         log.info("Deleted user {}", userId);
     }
 
@@ -208,4 +542,39 @@ public class UserContextService {
         
         return sb.toString();
     }
+
+    private static void count(UnitOfWork unit, Function<UnitOfWork, AtomicInteger> counter) {
+        if (unit != null) {
+            counter.apply(unit).incrementAndGet();
+        }
+    }
+
+    /**
+     * Состояние запроса: загруженные контексты (identity map), помеченные для записи и
+     * счётчики обращений к DynamoDB (BatchGetItem может идти из потока prefetch)
+     */
+    private static final class UnitOfWork {
+
+        private final Map<String, UserContext> loaded = new HashMap<>();
+        private final Set<String> dirty = new LinkedHashSet<>();
+        private final AtomicInteger versionChecks = new AtomicInteger();
+        private final AtomicInteger gets = new AtomicInteger();
+        private final AtomicInteger sessionGets = new AtomicInteger();
+        private final AtomicInteger batchGets = new AtomicInteger();
+        private final AtomicInteger writes = new AtomicInteger();
+        private final AtomicInteger skippedWrites = new AtomicInteger();
+        private final AtomicInteger deletes = new AtomicInteger();
+
+        String summary() {
+            return String.format("dynamodb: version=%d, get=%d, session=%d, batchGet=%d, write=%d, unchanged=%d, delete=%d, pending=%d",
+                    versionChecks.get(), gets.get(), sessionGets.get(), batchGets.get(), writes.get(),
+                    skippedWrites.get(), deletes.get(), dirty.size());
+        }
+    }
+
+    /**
+     * Профиль linked user в кэше: атрибуты из BatchGetItem и время загрузки
+     */
+    private record LinkedProfile(Map<String, AttributeValue> item, long loadedAt) {
+    }
 }